@@ -0,0 +1,383 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Which servers hold which hashes, kept in one memory-mapped matrix instead of a text file per
+ * hash under servers/.
+ *
+ * availability/servers.idx lists the known servers, one per line; a server's line number is its
+ * id and ids are never reused. availability/matrix-<w>.bin starts with a 16-byte header (the magic
+ * "DHAV", the bytes per row and the number of rows) followed by one row per hash: the 32-byte
+ * hash and a bitmap with bit id set for every server holding it. Rows are only ever appended,
+ * so the hash-to-row index is built once and then extended with the rows other processes add.
+ * Writers hold a lock on availability/lock, so Download, Servers and the other tools can update
+ * the store at the same time. When a new server id does not fit in a row, the matrix is
+ * copied to a file with wider rows (w is the bytes per row) and the old file is marked stale,
+ * which makes other processes switch to the new one. No mapped file is ever renamed over.
+ *
+ *   java Availability servers <hash>      servers holding a hash
+ *   java Availability hashes <server>     hashes a server holds
+ *   java Availability export [dir]        write the <dir>/<hash>.txt files (default servers)
+ *   java Availability import [dir]        read <dir>/<hash>.txt files into the store
+ */
+public class Availability implements Closeable {
+    private static final int MAGIC = 0x44484156; // "DHAV"
+    private static final int STALE = -1; // Row width of a matrix that has been replaced
+    private static final int HEADER_SIZE = 16;
+    private static final int INITIAL_ROW_BYTES = 8; // Room for 64 servers
+    private static final int INITIAL_ROWS = 1024;
+    private static final Pattern SHA256_REGEX = Pattern.compile("^[a-f0-9]{64}$");
+    private static final Path DEFAULT_DIR = Paths.get("availability");
+
+    private static Availability shared;
+
+    private final Path dir;
+    private final Path serversPath;
+    private final Path lockPath;
+
+    private FileChannel channel;
+    private MappedByteBuffer matrix;
+    private int rowBytes;
+    private int capacity; // Rows that fit in the mapping
+    private int indexed;  // Rows in the index
+    private final Map<String, Integer> rows = new HashMap<>();
+    private final List<String> servers = new ArrayList<>();
+    private final Map<String, Integer> serverIds = new HashMap<>();
+    private long serversFileSize;
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java Availability servers <hash> | hashes <server> | export [dir] | import [dir]");
+            return;
+        }
+        try (Availability availability = new Availability(DEFAULT_DIR)) {
+            switch (args[0]) {
+                case "servers":
+                    availability.servers(args[1]).forEach(System.out::println);
+                    break;
+                case "hashes":
+                    availability.hashes(args[1]).forEach(System.out::println);
+                    break;
+                case "export":
+                    System.out.println("Wrote " + availability.exportText(Paths.get(args.length > 1 ? args[1] : "servers")) + " file(s)");
+                    break;
+                case "import":
+                    System.out.println("Read " + availability.importText(Paths.get(args.length > 1 ? args[1] : "servers")) + " file(s)");
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[0]);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The store under availability/ in the working directory, opened once per process
+     */
+    public static synchronized Availability shared() throws IOException {
+        if (shared == null) {
+            shared = new Availability(DEFAULT_DIR);
+        }
+        return shared;
+    }
+
+    public Availability(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        serversPath = dir.resolve("servers.idx");
+        lockPath = dir.resolve("lock");
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                if (widestMatrix() == 0) {
+                    writeEmpty(matrixPath(INITIAL_ROW_BYTES), INITIAL_ROW_BYTES, INITIAL_ROWS);
+                }
+                openMatrix();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Records that server holds hash
+     */
+    public synchronized void add(String hash, String server) throws IOException {
+        hash = checkHash(hash);
+        server = server.trim();
+        try (FileChannel lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                refresh();
+                int id = serverId(server);
+                if (id >= rowBytes * 8) {
+                    widen(id);
+                }
+                Integer row = rows.get(hash);
+                if (row == null) {
+                    row = appendRow(hash);
+                }
+                int offset = rowOffset(row) + 32 + id / 8;
+                matrix.put(offset, (byte) (matrix.get(offset) | (1 << (id % 8))));
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /**
+     * Servers holding a hash, in the order they were first recorded
+     */
+    public synchronized List<String> servers(String hash) throws IOException {
+        hash = checkHash(hash);
+        refresh();
+        List<String> result = new ArrayList<>();
+        Integer row = rows.get(hash);
+        if (row != null) {
+            int offset = rowOffset(row) + 32;
+            for (int id = 0; id < servers.size() && id < rowBytes * 8; id++) {
+                if ((matrix.get(offset + id / 8) & (1 << (id % 8))) != 0) {
+                    result.add(servers.get(id));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hashes a server holds
+     */
+    public synchronized List<String> hashes(String server) throws IOException {
+        refresh();
+        List<String> result = new ArrayList<>();
+        Integer id = serverIds.get(server.trim());
+        if (id == null) {
+            return result;
+        }
+        byte[] hash = new byte[32];
+        for (int row = 0; row < indexed; row++) {
+            int offset = rowOffset(row);
+            if ((matrix.get(offset + 32 + id / 8) & (1 << (id % 8))) != 0) {
+                matrix.get(offset, hash);
+                result.add(HashIndex.bytesToHex(hash));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes dir/<hash>.txt with one server per line for every hash. Returns the number of files.
+     */
+    public synchronized int exportText(Path dir) throws IOException {
+        refresh();
+        Files.createDirectories(dir);
+        byte[] hash = new byte[32];
+        for (int row = 0; row < indexed; row++) {
+            matrix.get(rowOffset(row), hash);
+            String hex = HashIndex.bytesToHex(hash);
+            StringBuilder content = new StringBuilder();
+            for (String server : servers(hex)) {
+                content.append(server).append(System.lineSeparator());
+            }
+            Files.write(dir.resolve(hex + ".txt"), content.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return indexed;
+    }
+
+    /**
+     * Adds the servers listed in dir/<hash>.txt files. Returns the number of files read.
+     */
+    public int importText(Path dir) throws IOException {
+        int files = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.txt")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                String hash = name.substring(0, name.length() - ".txt".length()).toLowerCase();
+                if (!SHA256_REGEX.matcher(hash).matches()) {
+                    continue;
+                }
+                for (String server : Files.readAllLines(file)) {
+                    if (!server.trim().isEmpty()) {
+                        add(hash, server);
+                    }
+                }
+                files++;
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Catches up with changes made by other processes
+     */
+    private void refresh() throws IOException {
+        if (matrix.getInt(4) != rowBytes) {
+            openMatrix(); // Replaced by a matrix with wider rows
+        }
+        int count = matrix.getInt(8);
+        if (count > capacity) {
+            map(); // Grown by another process
+        }
+        byte[] hash = new byte[32];
+        for (; indexed < count; indexed++) {
+            matrix.get(rowOffset(indexed), hash);
+            rows.put(HashIndex.bytesToHex(hash), indexed);
+        }
+
+        long size = Files.exists(serversPath) ? Files.size(serversPath) : 0;
+        if (size != serversFileSize) {
+            String content = new String(Files.readAllBytes(serversPath), StandardCharsets.UTF_8);
+            String[] lines = content.split("\n", -1);
+            for (int id = servers.size(); id < lines.length - 1; id++) { // The last element follows the final newline
+                servers.add(lines[id]);
+                serverIds.put(lines[id], id);
+            }
+            serversFileSize = size;
+        }
+    }
+
+    private int serverId(String server) throws IOException {
+        Integer id = serverIds.get(server);
+        if (id == null) {
+            id = servers.size();
+            Files.write(serversPath, (server + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            servers.add(server);
+            serverIds.put(server, id);
+            serversFileSize = Files.size(serversPath);
+        }
+        return id;
+    }
+
+    private int appendRow(String hash) throws IOException {
+        int row = matrix.getInt(8);
+        if (row == capacity) {
+            long maxRows = (Integer.MAX_VALUE - HEADER_SIZE) / (32 + rowBytes);
+            if (capacity >= maxRows) {
+                throw new IOException("Availability matrix is full");
+            }
+            long newSize = HEADER_SIZE + Math.min(maxRows, 2L * capacity) * (32 + rowBytes);
+            channel.write(ByteBuffer.wrap(new byte[1]), newSize - 1);
+            map();
+        }
+        matrix.put(rowOffset(row), HashIndex.hexToBytes(hash));
+        matrix.putInt(8, row + 1);
+        rows.put(hash, row);
+        indexed = row + 1;
+        return row;
+    }
+
+    /**
+     * Rewrites the matrix with rows wide enough for server id
+     */
+    private void widen(int id) throws IOException {
+        int newRowBytes = rowBytes;
+        while (id >= newRowBytes * 8) {
+            newRowBytes *= 2;
+        }
+        int count = matrix.getInt(8);
+        Path tmp = Files.createTempFile(dir, "matrix", ".part");
+        writeEmpty(tmp, newRowBytes, Math.max(INITIAL_ROWS, count));
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer wider = out.map(FileChannel.MapMode.READ_WRITE, 0, out.size());
+            byte[] row = new byte[32 + rowBytes];
+            for (int i = 0; i < count; i++) {
+                matrix.get(rowOffset(i), row);
+                wider.put(HEADER_SIZE + i * (32 + newRowBytes), row);
+            }
+            wider.putInt(8, count);
+            wider.force();
+        }
+        Files.move(tmp, matrixPath(newRowBytes), StandardCopyOption.ATOMIC_MOVE);
+        matrix.putInt(4, STALE);
+        Path old = matrixPath(rowBytes);
+        openMatrix();
+        try {
+            Files.delete(old);
+        } catch (IOException e) {
+            // Still mapped elsewhere on some systems; it is stale and ignored
+        }
+        refresh();
+    }
+
+    private Path matrixPath(int rowBytes) {
+        return dir.resolve("matrix-" + rowBytes + ".bin");
+    }
+
+    /**
+     * Row width of the current matrix file, or 0 if there is none
+     */
+    private int widestMatrix() throws IOException {
+        int widest = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "matrix-*.bin")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    widest = Math.max(widest, Integer.parseInt(name.substring("matrix-".length(), name.length() - ".bin".length())));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+        return widest;
+    }
+
+    private void openMatrix() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path matrixPath = matrixPath(widestMatrix());
+        channel = FileChannel.open(matrixPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) < 1) {
+            throw new IOException("Not an availability matrix: " + matrixPath);
+        }
+        rowBytes = header.getInt(4);
+        rows.clear();
+        indexed = 0;
+        map();
+    }
+
+    private void map() throws IOException {
+        matrix = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        capacity = (int) ((channel.size() - HEADER_SIZE) / (32 + rowBytes));
+    }
+
+    private int rowOffset(int row) {
+        return HEADER_SIZE + row * (32 + rowBytes);
+    }
+
+    private static void writeEmpty(Path path, int rowBytes, int rowCount) throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(rowBytes).putInt(0).putInt(0);
+            header.flip();
+            out.write(header, 0);
+            out.write(ByteBuffer.wrap(new byte[1]), HEADER_SIZE + (long) rowCount * (32 + rowBytes) - 1);
+        }
+    }
+
+    private static String checkHash(String hash) {
+        hash = hash.trim().toLowerCase();
+        if (!SHA256_REGEX.matcher(hash).matches()) {
+            throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+        }
+        return hash;
+    }
+}
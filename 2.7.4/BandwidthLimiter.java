@@ -0,0 +1,197 @@
+import java.io.*;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the rate at which response bodies are read, over all transfers of the process and per
+ * server, so a Download or replication run leaves room on the link for the node's own uploads.
+ *
+ * Each read takes tokens from the server's bucket and the global one and asks the stream for
+ * no more bytes than it got, so a capped transfer reads slowly and TCP flow control slows the
+ * sender down, instead of a large read arriving at full speed and the thread sleeping it off.
+ * A reader waits for tokens without holding a lock, so transfers sharing a bucket take turns.
+ * Buckets hold at most one second of traffic.
+ *
+ *   decenhash.bandwidth.bytesPerSecond      global cap, 0 = unlimited
+ *   decenhash.bandwidth.peerBytesPerSecond  cap per server, defaults to decenhash.replicate.peerBytesPerSecond
+ *   decenhash.bandwidth.schedule            global cap by time of day, e.g. "08:00-18:00=1000000,18:00-08:00=0";
+ *                                           hours not covered use decenhash.bandwidth.bytesPerSecond
+ */
+public class BandwidthLimiter {
+    private static final long GLOBAL_BYTES_PER_SECOND = Long.getLong("decenhash.bandwidth.bytesPerSecond", 0);
+    private static final long PEER_BYTES_PER_SECOND = Long.getLong("decenhash.bandwidth.peerBytesPerSecond",
+            Long.getLong("decenhash.replicate.peerBytesPerSecond", 0));
+    private static final List<Window> SCHEDULE = parseSchedule(System.getProperty("decenhash.bandwidth.schedule", ""));
+    private static final long GRANT_DIVISOR = 20; // A reader waits for at least 1/20 s of traffic before reading
+
+    private static final Bucket global = new Bucket(true);
+    private static final Map<String, Bucket> peers = new ConcurrentHashMap<>();
+
+    /**
+     * Returns in limited to the global rate and the rate of the server url belongs to, or in
+     * itself when no limit is configured
+     */
+    public static InputStream limit(InputStream in, String url) {
+        if (GLOBAL_BYTES_PER_SECOND <= 0 && PEER_BYTES_PER_SECOND <= 0 && SCHEDULE.isEmpty()) {
+            return in;
+        }
+        Bucket peer = peers.computeIfAbsent(Scoreboard.origin(url), origin -> new Bucket(false));
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                int granted = peer.take(length);
+                int allowed = global.take(granted);
+                peer.giveBack(granted - allowed);
+                int n = -1;
+                try {
+                    n = super.read(buffer, offset, allowed);
+                    return n;
+                } finally {
+                    int unused = allowed - Math.max(n, 0);
+                    peer.giveBack(unused);
+                    global.giveBack(unused);
+                }
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                byte[] discard = new byte[(int) Math.min(n, 65536)];
+                int read = read(discard, 0, discard.length);
+                return Math.max(read, 0);
+            }
+        };
+    }
+
+    /**
+     * The global cap in force now, from the schedule or the fixed setting
+     */
+    private static long globalRate() {
+        LocalTime now = LocalTime.now();
+        for (Window window : SCHEDULE) {
+            if (window.contains(now)) {
+                return window.bytesPerSecond;
+            }
+        }
+        return GLOBAL_BYTES_PER_SECOND;
+    }
+
+    /**
+     * Parses "HH:mm-HH:mm=bytesPerSecond" entries separated by commas; a window may wrap past midnight
+     */
+    private static List<Window> parseSchedule(String text) {
+        List<Window> windows = new ArrayList<>();
+        for (String entry : text.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            try {
+                String[] rangeAndRate = entry.split("=");
+                String[] range = rangeAndRate[0].split("-");
+                windows.add(new Window(LocalTime.parse(range[0].trim()), LocalTime.parse(range[1].trim()),
+                        Long.parseLong(rangeAndRate[1].trim())));
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring bandwidth schedule entry \"" + entry + "\": expected HH:mm-HH:mm=bytesPerSecond");
+            }
+        }
+        return windows;
+    }
+
+    /**
+     * A daily time range with its own global cap
+     */
+    private static class Window {
+        final LocalTime start;
+        final LocalTime end;
+        final long bytesPerSecond;
+
+        Window(LocalTime start, LocalTime end, long bytesPerSecond) {
+            this.start = start;
+            this.end = end;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        boolean contains(LocalTime time) {
+            return start.isBefore(end)
+                    ? !time.isBefore(start) && time.isBefore(end)
+                    : !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+
+    /**
+     * Token bucket holding at most one second of traffic
+     */
+    private static class Bucket {
+        private final boolean isGlobal;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+        private long rate;
+        private long rateCheckedAt;
+
+        Bucket(boolean isGlobal) {
+            this.isGlobal = isGlobal;
+        }
+
+        /**
+         * Takes between 1 and wanted tokens, waiting until a useful amount is available
+         */
+        int take(int wanted) throws InterruptedIOException {
+            while (true) {
+                long waitNanos;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    long rate = rate(now);
+                    if (rate <= 0) {
+                        return wanted;
+                    }
+                    tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+                    lastRefill = now;
+                    long needed = Math.min(wanted, Math.max(1, rate / GRANT_DIVISOR));
+                    if (tokens >= needed) {
+                        int granted = (int) Math.min(wanted, (long) tokens);
+                        tokens -= granted;
+                        return granted;
+                    }
+                    waitNanos = (long) ((needed - tokens) * 1e9 / rate);
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for bandwidth");
+                }
+            }
+        }
+
+        synchronized void giveBack(int unused) {
+            if (unused > 0 && rate > 0) {
+                tokens = Math.min(rate, tokens + unused);
+            }
+        }
+
+        /**
+         * The current cap; the schedule is looked at once a second
+         */
+        private long rate(long now) {
+            if (!isGlobal) {
+                return rate = PEER_BYTES_PER_SECOND;
+            }
+            if (rateCheckedAt == 0 || now - rateCheckedAt >= TimeUnit.SECONDS.toNanos(1)) {
+                rate = globalRate();
+                rateCheckedAt = now;
+            }
+            return rate;
+        }
+    }
+}
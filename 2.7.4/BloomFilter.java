@@ -0,0 +1,91 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter over SHA-256 hashes.
+ *
+ * The keys are already uniformly distributed, so the k bit positions are derived from the
+ * first 16 bytes of the hash by double hashing instead of hashing again. Serialized form:
+ * the magic "DHBF", int k, long number of bits, then the bit words.
+ */
+public class BloomFilter {
+    private static final int MAGIC = 0x44484246; // "DHBF"
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_K = 32; // Bits per key; more is never useful and bounds the work of a lookup
+
+    private final long[] words;
+    private final long numBits;
+    private final int k;
+
+    /**
+     * Sizes the filter for the expected number of hashes and false-positive rate
+     */
+    public BloomFilter(long expectedItems, double falsePositiveRate) {
+        long bits = (long) Math.ceil(-Math.max(1, expectedItems) * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (bits + 63) / 64 * 64);
+        this.k = Math.min(MAX_K, Math.max(1, (int) Math.round((double) numBits / Math.max(1, expectedItems) * Math.log(2))));
+        this.words = new long[(int) (numBits / 64)];
+    }
+
+    private BloomFilter(long[] words, long numBits, int k) {
+        this.words = words;
+        this.numBits = numBits;
+        this.k = k;
+    }
+
+    public synchronized void add(byte[] hash) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h1 = key.getLong(0);
+        long h2 = key.getLong(8) | 1; // Odd step so positions don't repeat
+        for (int i = 0; i < k; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public synchronized boolean mightContain(byte[] hash) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h1 = key.getLong(0);
+        long h2 = key.getLong(8) | 1;
+        for (int i = 0; i < k; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + words.length * 8);
+        buffer.putInt(MAGIC).putInt(k).putLong(numBits);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses a serialized filter; returns null if the bytes are not a valid filter. The bytes
+     * come from other servers, so k must be within 1..MAX_K and the bit count must match the
+     * words that follow.
+     */
+    public static BloomFilter fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int k = buffer.getInt();
+        long numBits = buffer.getLong();
+        if (k < 1 || k > MAX_K || numBits < 64 || numBits % 64 != 0 || buffer.remaining() != numBits / 8) {
+            return null;
+        }
+        long[] words = new long[(int) (numBits / 64)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(words, numBits, k);
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Content-defined chunk store for large objects.
+ *
+ * Objects are split with a gear rolling hash, so an edit only changes the chunks around it
+ * and re-encoded or re-tagged copies of a file share most of their chunks. Chunks are stored
+ * once under chunks/ by their own SHA-256, and the object itself is kept as a recipe next to
+ * where the file would be: "<hash>.<ext>.recipe", holding the total size and then one
+ * "<chunk hash> <length>" line per chunk.
+ */
+public class ChunkStore {
+    static final String RECIPE_SUFFIX = ".recipe";
+    static final Pattern CHUNK_NAME = Pattern.compile("^[a-f0-9]{64}$");
+
+    private static final int MIN_CHUNK = 256 * 1024;
+    static final int MAX_CHUNK = 4 * 1024 * 1024;
+    private static final int CUT_BITS = 20; // Average chunk of about MIN_CHUNK + 1 MB
+    private static final int WINDOW = 64; // Bytes that influence the gear hash
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: every node must cut at the same places for chunks to dedupe across nodes
+        SplittableRandom random = new SplittableRandom(0x646563656e68L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Path chunksDir;
+
+    public ChunkStore(Path chunksDir) {
+        this.chunksDir = chunksDir;
+    }
+
+    /**
+     * Chunks the stream into the store and writes the recipe; returns the SHA-256 of the whole content
+     */
+    public String store(InputStream in, Path recipePath) throws IOException {
+        MessageDigest whole = newSha256();
+        StringBuilder recipe = new StringBuilder();
+        long total = 0;
+
+        byte[] buffer = new byte[MAX_CHUNK];
+        int filled = 0;
+        boolean eof = false;
+        while (true) {
+            if (!eof) {
+                int read = in.readNBytes(buffer, filled, MAX_CHUNK - filled);
+                filled += read;
+                eof = filled < MAX_CHUNK;
+            }
+            if (filled == 0) {
+                break;
+            }
+
+            int cut = findCut(buffer, filled);
+            String chunkHash = putChunk(buffer, cut);
+            whole.update(buffer, 0, cut);
+            recipe.append(chunkHash).append(' ').append(cut).append('\n');
+            total += cut;
+
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+        }
+
+        Path tmp = recipePath.resolveSibling(recipePath.getFileName() + ".part");
+        Files.write(tmp, ("size " + total + "\n" + recipe).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, recipePath, StandardCopyOption.ATOMIC_MOVE);
+        return HashIndex.bytesToHex(whole.digest());
+    }
+
+    /**
+     * Stores one chunk unless it is already present and returns its hash
+     */
+    public String putChunk(byte[] data, int length) throws IOException {
+        MessageDigest digest = newSha256();
+        digest.update(data, 0, length);
+        String chunkHash = HashIndex.bytesToHex(digest.digest());
+
+        Path chunkPath = chunkPath(chunkHash);
+        if (!Files.exists(chunkPath)) {
+            Files.createDirectories(chunkPath.getParent());
+            Path tmp = Files.createTempFile(chunkPath.getParent(), chunkHash, ".part");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(data, 0, length);
+            }
+            try {
+                Files.move(tmp, chunkPath, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(tmp); // Stored concurrently by someone else
+            }
+        }
+        return chunkHash;
+    }
+
+    public boolean hasChunk(String chunkHash) {
+        return Files.exists(chunkPath(chunkHash));
+    }
+
+    public Path chunkPath(String chunkHash) {
+        return chunksDir.resolve(chunkHash.substring(0, 2)).resolve(chunkHash);
+    }
+
+    /**
+     * Total size of the object described by a recipe
+     */
+    public static long size(Path recipePath) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(recipePath, StandardCharsets.UTF_8)) {
+            return Long.parseLong(reader.readLine().substring("size ".length()));
+        }
+    }
+
+    /**
+     * Chunk hashes of a recipe, in order
+     */
+    public static List<String> chunks(Path recipePath) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        List<String> lines = Files.readAllLines(recipePath, StandardCharsets.UTF_8);
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (!line.isEmpty()) {
+                chunks.add(line.substring(0, line.indexOf(' ')));
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Reassembles the object described by a recipe, opening each chunk only when it is reached
+     */
+    public InputStream open(Path recipePath) throws IOException {
+        Iterator<String> chunks = chunks(recipePath).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return Files.newInputStream(chunkPath(chunks.next()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the length of the next chunk at the start of buffer
+     */
+    private static int findCut(byte[] buffer, int length) {
+        if (length <= MIN_CHUNK) {
+            return length;
+        }
+        long hash = 0;
+        for (int i = MIN_CHUNK - WINDOW; i < length; i++) {
+            hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+            if (i >= MIN_CHUNK && (hash >>> (64 - CUT_BITS)) == 0) {
+                return i + 1;
+            }
+        }
+        // No boundary found: the chunk ends at the maximum size or at the end of the stream
+        return length;
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+}
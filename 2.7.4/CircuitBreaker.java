@@ -0,0 +1,139 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-server circuit breakers for the requests made through Transport, so a server that went
+ * down costs one timeout per open window instead of one per file.
+ *
+ * A breaker opens after FAILURE_THRESHOLD consecutive failures, or when at least half of the
+ * server's last WINDOW requests failed. While it is open, requests to the server fail at once
+ * without touching the network. Once the open time has passed, a single request is let
+ * through as a probe: if it succeeds the breaker closes, otherwise it opens again for twice as
+ * long, up to MAX_OPEN_MILLIS. allow() hands out a ticket with every request it lets through,
+ * and only the probe's ticket decides the half-open state, so a request that was already out
+ * and ends during the probe, such as a cancelled hedge, neither closes the breaker nor lets a
+ * second probe through. Failures are what the Scoreboard counts as such: no connection,
+ * a timeout or a 5xx status.
+ */
+public class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = Integer.getInteger("decenhash.breaker.failures", 5); // Consecutive failures that open the breaker
+    private static final int WINDOW = 20; // Recent requests the error rate is taken over
+    private static final int MIN_WINDOW = 10; // Requests needed before the error rate counts
+    private static final double MAX_ERROR_RATE = 0.5;
+    private static final long OPEN_MILLIS = Long.getLong("decenhash.breaker.openMillis", 30000);
+    private static final long MAX_OPEN_MILLIS = 10 * 60 * 1000;
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static final long REFUSED = -1; // From allow(): the request must not be sent
+    private static final long NOT_PROBE = 0; // Ticket of a request sent while the breaker was closed
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private final String origin;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private final boolean[] outcomes = new boolean[WINDOW]; // true = failure, as a ring
+    private int recorded;
+    private int openings; // Consecutive times opened without a successful probe
+    private long openUntil;
+    private long probe = NOT_PROBE; // Ticket of the probe out while half-open
+    private long probes; // Probes sent so far, numbering their tickets
+
+    private CircuitBreaker(String origin) {
+        this.origin = origin;
+    }
+
+    /**
+     * Whether a request to url may be sent now: REFUSED, or the ticket the caller must pass to
+     * success(), failure() or abandoned() with the outcome
+     */
+    public static long allow(String url) {
+        return breaker(url).allow();
+    }
+
+    public static void success(String url, long ticket) {
+        breaker(url).record(false, ticket);
+    }
+
+    public static void failure(String url, long ticket) {
+        breaker(url).record(true, ticket);
+    }
+
+    /**
+     * Reports a request that was cancelled before it had an outcome, so if it was the probe
+     * another one can be sent
+     */
+    public static void abandoned(String url, long ticket) {
+        breaker(url).abandon(ticket);
+    }
+
+    private static CircuitBreaker breaker(String url) {
+        return breakers.computeIfAbsent(Scoreboard.origin(url), CircuitBreaker::new);
+    }
+
+    private synchronized long allow() {
+        switch (state) {
+            case CLOSED:
+                return NOT_PROBE;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    return REFUSED;
+                }
+                state = State.HALF_OPEN; // This request is the probe
+                probe = ++probes;
+                return probe;
+            default:
+                return REFUSED; // A probe is already out
+        }
+    }
+
+    private synchronized void record(boolean failed, long ticket) {
+        if (state == State.HALF_OPEN && ticket != probe) {
+            return; // Sent before the breaker opened; only the probe's outcome counts now
+        }
+        outcomes[recorded++ % WINDOW] = failed;
+        if (!failed) {
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                System.err.println("Circuit closed for " + origin);
+                recorded = 0; // Failures from before the outage no longer count
+            }
+            state = State.CLOSED;
+            openings = 0;
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && (consecutiveFailures >= FAILURE_THRESHOLD || errorRate() >= MAX_ERROR_RATE))) {
+            long openMillis = Math.min(OPEN_MILLIS << Math.min(openings, 20), MAX_OPEN_MILLIS);
+            openings++;
+            state = State.OPEN;
+            openUntil = System.currentTimeMillis() + openMillis;
+            System.err.println("Circuit open for " + origin + " for " + openMillis / 1000 + " s after "
+                    + consecutiveFailures + " consecutive failure(s)");
+        }
+    }
+
+    private synchronized void abandon(long ticket) {
+        if (state == State.HALF_OPEN && ticket == probe) {
+            state = State.OPEN; // openUntil has passed, so the next request probes
+        }
+    }
+
+    /**
+     * Share of failures among the recent requests, or 0 while there are too few of them
+     */
+    private double errorRate() {
+        int count = Math.min(recorded, WINDOW);
+        if (count < MIN_WINDOW) {
+            return 0;
+        }
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            if (outcomes[i]) {
+                failures++;
+            }
+        }
+        return (double) failures / count;
+    }
+}
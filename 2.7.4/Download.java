@@ -1,11 +1,44 @@
 import java.io.*;
-import java.net.*;
 import java.nio.file.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Downloads the files listed in files.txt from the servers in servers.txt into data/.
+ *
+ *   java Download [--watch]
+ *
+ * With --watch the tool keeps running: it watches files.txt and servers.txt, fetches files as
+ * they are added, and retries files that failed once their backoff in the journal has passed,
+ * keeping its scoreboard, circuit breakers and connections across rounds.
+ */
 public class Download {
+    private static final int MAX_CONCURRENT = Integer.getInteger("decenhash.download.concurrency", 32); // Transfers overall
+    private static final int MAX_PER_SERVER = Integer.getInteger("decenhash.download.perServer", 4); // Transfers to one server
+    private static final long PROGRESS_SECONDS = 5;
+    private static final long MAX_FILE_SIZE = Long.getLong("decenhash.download.maxBytes", 8L * 1024 * 1024 * 1024); // Larger bodies are abandoned
+    private static final boolean SWARM_ENABLED = !Boolean.getBoolean("decenhash.download.noSwarm");
+    private static final long SWARM_THRESHOLD = Long.getLong("decenhash.download.swarmThreshold", 16L * 1024 * 1024); // Smaller files come from one server
+    private static final boolean HEDGE_ENABLED = !Boolean.getBoolean("decenhash.download.noHedge");
+    private static final Path JOURNAL = Paths.get(System.getProperty("decenhash.download.journal", "download.journal"));
+    private static final long WATCH_SECONDS = Long.getLong("decenhash.download.watchSeconds", 60); // How often --watch looks for retries due
+    private static final long SETTLE_MILLIS = 200; // Lets an editor finish writing files.txt
+
+    private static final Map<String, Semaphore> serverSlots = new ConcurrentHashMap<>();
+    private static final Set<String> inFlight = ConcurrentHashMap.newKeySet(); // Files queued or being downloaded right now
+    private static final Set<Progress> active = ConcurrentHashMap.newKeySet(); // Rounds with downloads still running
+    private static volatile boolean watching;
+
     public static void main(String[] args) {
+        watching = args.length == 1 && args[0].equals("--watch");
+        if (args.length > (watching ? 1 : 0)) {
+            System.err.println("Usage: java Download [--watch]");
+            return;
+        }
+
         // Create data directory if it doesn't exist
         Path dataDir = Paths.get("data");
         try {
@@ -17,21 +50,30 @@ public class Download {
             return;
         }
 
-        // Create servers directory if it doesn't exist
-        Path serversDir = Paths.get("servers");
+        // The journal of earlier runs says which files are done and which failed recently
+        DownloadJournal journal;
         try {
-            if (!Files.exists(serversDir)) {
-                Files.createDirectory(serversDir);
-            }
+            journal = new DownloadJournal(JOURNAL);
         } catch (IOException e) {
-            System.err.println("Error creating servers directory: " + e.getMessage());
+            System.err.println("Error reading " + JOURNAL + ": " + e.getMessage());
             return;
         }
 
-        // Read servers from servers.txt
-        List<String> servers = readLinesFromFile("servers.txt");
-        if (servers == null) {
-            System.err.println("Error reading servers.txt");
+        // The pool size caps transfers overall and a semaphore per server caps the transfers to each server
+        ExecutorService pool = Executors.newFixedThreadPool(MAX_CONCURRENT, r -> {
+            Thread thread = new Thread(r, "download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "download-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> active.forEach(Progress::print), PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+
+        if (watching) {
+            watch(journal, dataDir, pool);
             return;
         }
 
@@ -41,71 +83,381 @@ public class Download {
             System.err.println("Error reading files.txt");
             return;
         }
+        Progress progress = queue(files, journal, dataDir, pool);
+        if (progress == null) {
+            return;
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reporter.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            System.err.println("Error closing " + JOURNAL + ": " + e.getMessage());
+        }
+        progress.printReport();
 
-        for (String filename : files) {
-            // Get file info
-            String filenameNoExt = getFilenameWithoutExtension(filename);
-            String expectedHash = filenameNoExt;
-            String extension = getFileExtension(filename);
-            
-            // Check if file already exists in data folder
-            Path targetDir = dataDir.resolve(expectedHash);
-            Path targetPath = targetDir.resolve(expectedHash + extension);
-            
-            if (Files.exists(targetPath)) {
-                continue; // File already exists, skip to next file
+        System.out.println("Processing complete.");
+    }
+
+    /**
+     * Runs until stopped: queues the files of files.txt whenever it or servers.txt changes, and
+     * every WATCH_SECONDS queues again the files that failed, which the journal holds back until
+     * their backoff has passed. Files already done or in flight cost nothing more than a lookup.
+     * The journal is compacted between rounds once it holds more than two lines per file.
+     */
+    private static void watch(DownloadJournal journal, Path dataDir, ExecutorService pool) {
+        Path dir = Paths.get("").toAbsolutePath();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            System.out.println("Watching " + dir.resolve("files.txt") + " for new files. Stop with Ctrl+C.");
+            Set<String> wanted = new LinkedHashSet<>();
+            boolean changed = true;
+            while (true) {
+                if (changed) {
+                    List<String> files = readLinesFromFile("files.txt");
+                    if (files == null) {
+                        System.err.println("Error reading files.txt");
+                    } else {
+                        wanted = new LinkedHashSet<>(files);
+                        queue(wanted, journal, dataDir, pool);
+                    }
+                } else {
+                    List<String> retries = new ArrayList<>(journal.failedFiles());
+                    retries.retainAll(wanted);
+                    if (!retries.isEmpty()) {
+                        queue(retries, journal, dataDir, pool);
+                    }
+                }
+                try {
+                    journal.compactIfNeeded();
+                } catch (IOException e) {
+                    System.err.println("Could not compact " + JOURNAL + ": " + e.getMessage());
+                }
+                changed = waitForChange(watcher);
             }
+        } catch (IOException e) {
+            System.err.println("Cannot watch " + dir + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
+    /**
+     * Waits up to WATCH_SECONDS for files.txt or servers.txt to change. Returns false on timeout.
+     */
+    private static boolean waitForChange(WatchService watcher) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WATCH_SECONDS);
+        while (true) {
+            long left = deadline - System.nanoTime();
+            WatchKey key = left > 0 ? watcher.poll(left, TimeUnit.NANOSECONDS) : null;
+            if (key == null) {
+                return false;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                String name = String.valueOf(event.context());
+                changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || name.equals("files.txt") || name.equals("servers.txt");
+            }
+            key.reset();
+            if (changed) {
+                Thread.sleep(SETTLE_MILLIS);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Submits the files that are not done, in flight or waiting out a retry backoff to the pool.
+     * Returns the progress of this round, or null if servers.txt cannot be read.
+     */
+    private static Progress queue(Collection<String> files, DownloadJournal journal, Path dataDir, ExecutorService pool) {
+        // Read servers from servers.txt, fastest and most reliable first; servers that failed
+        // recently are left out
+        List<String> listed = readLinesFromFile("servers.txt");
+        if (listed == null) {
+            System.err.println("Error reading servers.txt");
+            return null;
+        }
+        List<String> servers = Scoreboard.order(listed);
+
+        // Keep only the files that are not done yet and not waiting out a retry backoff, each once
+        List<String> pending = new ArrayList<>();
+        List<String> pendingHashes = new ArrayList<>();
+        int alreadyPresent = 0;
+        int deferred = 0;
+        long now = System.currentTimeMillis();
+        try {
+            for (String filename : new LinkedHashSet<>(files)) {
+                if (filename.trim().isEmpty() || inFlight.contains(filename)) {
+                    continue;
+                }
+                String expectedHash = getFilenameWithoutExtension(filename);
+                Path targetPath = dataDir.resolve(expectedHash).resolve(expectedHash + getFileExtension(filename));
+                if (journal.isDone(filename)) {
+                    alreadyPresent++;
+                } else if (journal.retryAt(filename) > now) {
+                    deferred++;
+                } else if (StoredFiles.exists(targetPath)) {
+                    journal.done(filename, "-", false);
+                    alreadyPresent++;
+                } else {
+                    pending.add(filename);
+                    pendingHashes.add(expectedHash);
+                }
+            }
+            journal.force();
+        } catch (IOException e) {
+            System.err.println("Error writing " + JOURNAL + ": " + e.getMessage());
+            return null;
+        }
+
+        // Ask every server once per batch which of the pending hashes it stores.
+        // A null entry means the server has no /have endpoint; its Bloom filter is used if it has one.
+        Map<String, BitSet> availability = new HashMap<>();
+        if (!pending.isEmpty()) {
             for (String server : servers) {
-                // Normalize server URL
-                String normalizedServer = server.replaceAll("/+$", "") + "/";
-                String url = normalizedServer + "data/" + filenameNoExt + "/" + filename;
+                availability.put(server, PeerClient.have(server, pendingHashes));
+            }
+        }
+        for (String server : servers) {
+            serverSlots.putIfAbsent(server, new Semaphore(MAX_PER_SERVER));
+        }
 
+        Progress progress = new Progress(alreadyPresent, deferred, pending.size());
+        if (!pending.isEmpty()) {
+            active.add(progress);
+            if (watching) {
+                System.out.println("Queued " + pending.size() + " file(s)");
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            String filename = pending.get(i);
+            int index = i;
+            inFlight.add(filename);
+            pool.submit(() -> {
+                List<String> tried = new ArrayList<>();
                 try {
-                    // Download file
-                    byte[] fileContent = downloadFile(url);
-                    if (fileContent == null) {
-                        continue; // File not found on this server
+                    String source = downloadFromAnyServer(filename, index, servers, availability, dataDir, progress, tried);
+                    if (source != null) {
+                        journal.done(filename, source);
+                        progress.succeeded.incrementAndGet();
+                    } else {
+                        journal.failed(filename, tried);
+                        progress.failed.add(filename);
                     }
+                } catch (IOException e) {
+                    System.err.println("Error writing " + JOURNAL + ": " + e.getMessage());
+                } catch (RuntimeException e) {
+                    progress.failed.add(filename);
+                } finally {
+                    inFlight.remove(filename);
+                    if (progress.remaining.decrementAndGet() == 0) {
+                        active.remove(progress);
+                        if (watching) {
+                            progress.printReport();
+                        }
+                    }
+                }
+            });
+        }
+        return progress;
+    }
 
-                    // Calculate hash
-                    String actualHash = calculateSHA256(fileContent);
+    /**
+     * Tries the servers in scoreboard order until one returns the file with the right hash.
+     * index is the file's position in the availability bitmaps. Returns the server the file
+     * came from, or null if none delivered it; the servers asked are added to tried.
+     */
+    private static String downloadFromAnyServer(String filename, int index, List<String> servers, Map<String, BitSet> availability,
+                                                Path dataDir, Progress progress, List<String> tried) {
+        // Get file info
+        String filenameNoExt = getFilenameWithoutExtension(filename);
+        String expectedHash = filenameNoExt;
+        String extension = getFileExtension(filename);
 
-                    // Check if hash matches
-                    if (actualHash.equals(expectedHash)) {
-                        // Create directory for this hash if it doesn't exist
-                        if (!Files.exists(targetDir)) {
-                            Files.createDirectory(targetDir);
-                        }
+        Path targetDir = dataDir.resolve(expectedHash);
+        Path targetPath = targetDir.resolve(expectedHash + extension);
 
-                        // Save the file
-                        Files.write(targetPath, fileContent);
+        // Skip servers that reported they don't have this hash
+        List<String> candidates = new ArrayList<>();
+        for (String server : servers) {
+            BitSet present = availability.get(server);
+            if (present != null ? present.get(index) : PeerClient.mightHave(server, expectedHash)) {
+                candidates.add(server);
+            }
+        }
 
-                        // Create hash file in servers directory
-                        Path hashFile = serversDir.resolve(expectedHash + ".txt");
+        // Large files held by several servers are fetched in ranges from all of them at once,
+        // unless an interrupted download left a partial file to continue. The first response
+        // tells whether the file is large enough.
+        boolean resumable = Files.exists(targetPath.resolveSibling(targetPath.getFileName() + ".part"));
+        boolean maySwarm = SWARM_ENABLED && !resumable && candidates.size() > 1;
 
-                        // Read existing servers if file exists
-                        Set<String> existingServers = new HashSet<>();
-                        if (Files.exists(hashFile)) {
-                            existingServers.addAll(Files.readAllLines(hashFile));
-                        }
+        List<String> ordered = Scoreboard.order(candidates);
+        for (int i = 0; i < ordered.size(); i++) {
+            String server = ordered.get(i);
+            if (tried.contains(server)) {
+                continue; // Already answered as the backup of a hedged request
+            }
+            tried.add(server);
 
-                        // Add server if not already present
-                        if (!existingServers.contains(server)) {
-                            Files.write(hashFile, (server + System.lineSeparator()).getBytes(),
-                                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                        }
+            // The next server in line is asked as well if this one is slow to answer
+            String backup = null;
+            for (int j = i + 1; HEDGE_ENABLED && backup == null && j < ordered.size(); j++) {
+                if (!tried.contains(ordered.get(j))) {
+                    backup = ordered.get(j);
+                }
+            }
 
-                        break; // Found valid file, move to next file
-                    }
-                } catch (IOException e) {
-                    // Silently skip errors
-                    continue;
+            Semaphore slots = serverSlots.get(server);
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            AtomicLong swarmSize = maySwarm ? new AtomicLong(-1) : null;
+            try {
+                // Download file, hashing it as it streams to disk; it only gets its name if the hash matches
+                String source = downloadVerified(server, backup, filename, targetPath, progress, tried, swarmSize);
+                if (source != null) {
+                    recordServer(expectedHash, source);
+                    progress.perServer.computeIfAbsent(source, s -> new AtomicInteger()).incrementAndGet();
+                    return source; // Found valid file, move to next file
                 }
+            } catch (IOException e) {
+                // Silently skip errors
+                continue;
+            } finally {
+                slots.release();
             }
+
+            if (swarmSize != null && swarmSize.get() >= 0) {
+                maySwarm = false;
+                String sources = swarmDownload(filename, candidates, targetPath, progress, swarmSize.get());
+                if (sources != null) {
+                    return sources;
+                }
+                tried.remove(server);
+                i--; // Fetch it from this server alone after all
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Downloads a file of the given size from all candidate servers at once. Returns the servers
+     * that contributed, comma separated, or null if the file should be fetched from one server instead.
+     */
+    private static String swarmDownload(String filename, List<String> candidates, Path targetPath, Progress progress, long size) {
+        String expectedHash = getFilenameWithoutExtension(filename);
+        Map<String, String> sources = new LinkedHashMap<>();
+        for (String server : candidates) {
+            sources.put(server, objectUrl(server, filename));
         }
 
-        System.out.println("Processing complete.");
+        try {
+            Files.createDirectories(targetPath.getParent());
+            Set<String> contributors = new Swarm(expectedHash, sources, size, serverSlots, progress.bytes).download(targetPath);
+            if (contributors == null) {
+                return null;
+            }
+            for (String server : contributors) {
+                recordServer(expectedHash, server);
+                progress.perServer.computeIfAbsent(server, s -> new AtomicInteger()).incrementAndGet();
+            }
+            return contributors.isEmpty() ? "-" : String.join(",", contributors);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            deleteIfEmpty(targetPath.getParent());
+        }
+    }
+
+    private static String objectUrl(String server, String filename) {
+        // Normalize server URL
+        String normalizedServer = server.replaceAll("/+$", "") + "/";
+        return normalizedServer + "data/" + getFilenameWithoutExtension(filename) + "/" + filename;
+    }
+
+    /**
+     * Removes a hash folder that a failed download left empty
+     */
+    private static void deleteIfEmpty(Path dir) {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException e) {
+            // The folder holds the file or other content
+        } catch (IOException e) {
+            System.err.println("Could not remove " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records in the availability store that a server holds a hash
+     */
+    private static void recordServer(String hash, String server) throws IOException {
+        Availability.shared().add(hash, server);
+    }
+
+    /**
+     * Counters shared by the download threads, printed periodically and at the end
+     */
+    private static class Progress {
+        final int alreadyPresent;
+        final int deferred;
+        final int total;
+        final AtomicInteger remaining; // Downloads of this round not finished yet
+        final long startNanos = System.nanoTime();
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger hedges = new AtomicInteger(); // Requests that also went to a backup server
+        final AtomicInteger hedgesWon = new AtomicInteger(); // ... and got the file from it
+        final Queue<String> failed = new ConcurrentLinkedQueue<>();
+        final Map<String, AtomicInteger> perServer = new ConcurrentSkipListMap<>();
+
+        Progress(int alreadyPresent, int deferred, int total) {
+            this.alreadyPresent = alreadyPresent;
+            this.deferred = deferred;
+            this.total = total;
+            this.remaining = new AtomicInteger(total);
+        }
+
+        void print() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("Progress: %d/%d done, %d failed, %.1f MB at %.1f MB/s, %d in flight%n",
+                    succeeded.get() + failed.size(), total, failed.size(), bytes.get() / 1e6,
+                    bytes.get() / 1e6 / Math.max(seconds, 0.001), inFlight.size());
+        }
+
+        void printReport() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("Downloaded %d of %d file(s) (%d already present) in %.1f s, %.1f MB at %.1f MB/s%n",
+                    succeeded.get(), total, alreadyPresent, seconds, bytes.get() / 1e6, bytes.get() / 1e6 / Math.max(seconds, 0.001));
+            if (hedges.get() > 0) {
+                System.out.println("Hedged " + hedges.get() + " slow request(s) to a second server, which answered first "
+                        + hedgesWon.get() + " time(s)");
+            }
+            if (deferred > 0) {
+                System.out.println(deferred + " file(s) failed recently and wait for their retry backoff");
+            }
+            for (Map.Entry<String, AtomicInteger> entry : perServer.entrySet()) {
+                System.out.println("  " + entry.getKey() + ": " + entry.getValue().get() + " file(s)");
+            }
+            if (!failed.isEmpty()) {
+                System.out.println("Not found on any server (" + failed.size() + "):");
+                for (String filename : failed) {
+                    System.out.println("  " + filename);
+                }
+            }
+        }
     }
 
     private static List<String> readLinesFromFile(String filename) {
@@ -126,46 +478,112 @@ public class Download {
         return (dotIndex == -1) ? "" : filename.substring(dotIndex);
     }
 
-    private static byte[] downloadFile(String urlString) {
+    /**
+     * Streams a file from server into <target>.part in the target's directory, hashing as it
+     * goes, and renames it to target only if it hashes to its name. Memory use does not depend
+     * on the file size. A .part left by an interrupted transfer is re-hashed and continued with
+     * "Range: bytes=N-"; it is only discarded once it is known to be bad.
+     *
+     * If server has not answered within its usual latency, backup (may be null) is asked too,
+     * when it has a free slot, and the file comes from whichever answers first; the backup is
+     * then added to tried. Returns the server the file came from, or null.
+     *
+     * If swarmSize is not null and the response is the whole file, at least SWARM_THRESHOLD
+     * bytes long and served with byte ranges, the response is dropped, swarmSize set to the file
+     * size and null returned, so the caller fetches the file from all servers at once.
+     */
+    private static String downloadVerified(String server, String backup, String filename, Path targetPath,
+                                           Progress progress, List<String> tried, AtomicLong swarmSize) throws IOException {
+        String expectedHash = getFilenameWithoutExtension(filename);
+        Path targetDir = targetPath.getParent();
+        Path partPath = targetPath.resolveSibling(targetPath.getFileName() + ".part");
+        Files.createDirectories(targetDir);
+        Semaphore backupSlots = backup == null ? null : serverSlots.get(backup);
+        boolean holdingBackup = backupSlots != null && backupSlots.tryAcquire();
+        boolean discard = false;
         try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(5000);
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                return null;
+            long offset = Files.exists(partPath) ? Files.size(partPath) : 0;
+            PeerClient.Hedged hedged = PeerClient.openHedged(objectUrl(server, filename),
+                    holdingBackup ? objectUrl(backup, filename) : null, offset);
+            if (hedged.fired) {
+                progress.hedges.incrementAndGet();
+            }
+            if (hedged.fired && hedged.body != null && !hedged.url.equals(objectUrl(server, filename))) {
+                progress.hedgesWon.incrementAndGet();
+                server = backup; // Its slot stays taken until the transfer ends
+                tried.add(backup);
+            } else if (holdingBackup) {
+                backupSlots.release();
+                holdingBackup = false;
             }
+            String url = objectUrl(server, filename);
 
-            try (InputStream in = connection.getInputStream();
-                 ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+            PeerClient.Body opened = hedged.body;
+            if (opened == null && offset > 0 && (hedged.status == 416 || hedged.status == 206)) {
+                // Range refused, or answered with another one: the part may already be complete,
+                // otherwise start over. Any other status means the server lacks the file.
+                if (expectedHash.equals(sha256Hex(partPath))) {
+                    Files.move(partPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+                    return server;
                 }
-                return out.toByteArray();
+                opened = PeerClient.openFrom(url, 0);
             }
-        } catch (Exception e) {
-            return null;
+            try (PeerClient.Body body = opened) {
+                if (body == null) {
+                    return null; // File not found on this server
+                }
+                if (body.length > MAX_FILE_SIZE) {
+                    discard = true;
+                    return null;
+                }
+                if (swarmSize != null && body.start == 0 && body.length >= SWARM_THRESHOLD && body.ranges) {
+                    swarmSize.set(body.length);
+                    return null;
+                }
+
+                // Re-hash what is already on disk if the server continues from there
+                MessageDigest digest = newSha256();
+                if (body.start > 0) {
+                    try (InputStream in = Files.newInputStream(partPath)) {
+                        PeerClient.copyDigest(in, digest, OutputStream.nullOutputStream(), Long.MAX_VALUE);
+                    }
+                }
+                long copied;
+                OpenOption mode = body.start > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode), 65536)) {
+                    copied = PeerClient.copyDigest(body.in, digest, out, MAX_FILE_SIZE - body.start);
+                }
+                progress.bytes.addAndGet(Math.max(copied, 0));
+                if (copied < 0 || !expectedHash.equals(HashIndex.bytesToHex(digest.digest()))) {
+                    discard = true;
+                    return null;
+                }
+            }
+            Files.move(partPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+            return server;
+        } finally {
+            if (holdingBackup) {
+                backupSlots.release();
+            }
+            if (discard) {
+                Files.deleteIfExists(partPath);
+            }
+            deleteIfEmpty(targetDir);
         }
     }
 
-    private static String calculateSHA256(byte[] data) {
+    private static String sha256Hex(Path file) throws IOException {
+        MessageDigest digest = newSha256();
+        try (InputStream in = Files.newInputStream(file)) {
+            PeerClient.copyDigest(in, digest, OutputStream.nullOutputStream(), Long.MAX_VALUE);
+        }
+        return HashIndex.bytesToHex(digest.digest());
+    }
+
+    private static MessageDigest newSha256() {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("SHA-256 algorithm not found", e);
         }
@@ -0,0 +1,240 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Append-only record of what Download achieved for each file, so a run over a large files.txt
+ * that is killed part way continues where it stopped.
+ *
+ * A file that was downloaded is not checked again on the next run, not even with a stat; one
+ * that no server delivered is retried only once its backoff has passed, which doubles with each
+ * failed attempt. Each outcome is forced to disk before the download counts as finished. Lines
+ * cut short by a crash are ignored when the journal is read. Delete the journal to check every
+ * file again. Line format:
+ *
+ *   <time ms> done <filename> <server>
+ *   <time ms> failed <filename> <attempts> <server,server,...>
+ *
+ * The journal is rewritten with one line per file when it has grown to more than twice that,
+ * when it is opened and, for a long-running --watch, whenever compactIfNeeded() is called.
+ */
+public class DownloadJournal implements Closeable {
+    private static final long RETRY_MILLIS = Long.getLong("decenhash.download.retryMillis", 60000); // Backoff after the first failure
+    private static final long MAX_RETRY_MILLIS = 6 * 60 * 60 * 1000;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private int lines; // Records in the file, including those superseded by later ones
+
+    /**
+     * Reads the journal at file, compacting it if needed, and opens it for appending
+     */
+    public DownloadJournal(Path file) throws IOException {
+        this.file = file;
+        lines = read();
+        if (lines > 2 * entries.size()) {
+            compact();
+        }
+        open();
+        if (channel.size() > 0 && !endsWithNewline()) {
+            write("\n"); // Close a line cut short by a crash
+        }
+    }
+
+    /**
+     * True if the file was downloaded in an earlier run or this one
+     */
+    public synchronized boolean isDone(String filename) {
+        Entry entry = entries.get(filename);
+        return entry != null && entry.done;
+    }
+
+    /**
+     * When a file that failed may be tried again, or 0 if it has not failed
+     */
+    public synchronized long retryAt(String filename) {
+        Entry entry = entries.get(filename);
+        if (entry == null || entry.done) {
+            return 0;
+        }
+        return entry.time + Math.min(RETRY_MILLIS << Math.min(entry.attempts - 1, 20), MAX_RETRY_MILLIS);
+    }
+
+    /**
+     * Files whose latest outcome is a failure
+     */
+    public synchronized List<String> failedFiles() {
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!entry.getValue().done) {
+                failed.add(entry.getKey());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Records a file as downloaded from server and forces the record to disk
+     */
+    public void done(String filename, String server) throws IOException {
+        done(filename, server, true);
+    }
+
+    /**
+     * Records a file as present. Without force the record may be lost in a crash, which only
+     * costs a check on the next run; call force() after a batch of them.
+     */
+    public synchronized void done(String filename, String server, boolean force) throws IOException {
+        Entry entry = new Entry();
+        entry.done = true;
+        entry.time = System.currentTimeMillis();
+        entry.servers = server;
+        entries.put(filename, entry);
+        write(entry.format(filename));
+        lines++;
+        if (force) {
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Records that none of servers delivered the file and forces the record to disk
+     */
+    public synchronized void failed(String filename, Collection<String> servers) throws IOException {
+        Entry previous = entries.get(filename);
+        Entry entry = new Entry();
+        entry.time = System.currentTimeMillis();
+        entry.attempts = previous == null || previous.done ? 1 : previous.attempts + 1;
+        entry.servers = servers.isEmpty() ? "-" : String.join(",", servers);
+        entries.put(filename, entry);
+        write(entry.format(filename));
+        lines++;
+        channel.force(false);
+    }
+
+    /**
+     * Rewrites the journal with one line per file if it has grown to more than twice that
+     */
+    public synchronized void compactIfNeeded() throws IOException {
+        if (lines <= 2 * entries.size()) {
+            return;
+        }
+        channel.force(false);
+        channel.close();
+        try {
+            compact();
+        } finally {
+            open();
+        }
+    }
+
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Loads the journal and returns how many records it holds
+     */
+    private int read() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        int lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    entries.put(line.split(" ")[2], entry);
+                    lines++;
+                }
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Rewrites the journal with the latest record of each file and replaces it atomically
+     */
+    private void compact() throws IOException {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            content.append(entry.getValue().format(entry.getKey()));
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, "journal", ".part");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = entries.size();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private boolean endsWithNewline() throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            in.read(last, in.size() - 1);
+            return last.get(0) == '\n';
+        }
+    }
+
+    private void write(String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The latest outcome for one file
+     */
+    private static class Entry {
+        boolean done;
+        long time;
+        int attempts;
+        String servers;
+
+        String format(String filename) {
+            return done ? time + " done " + filename + " " + servers + "\n"
+                    : time + " failed " + filename + " " + attempts + " " + servers + "\n";
+        }
+
+        static Entry parse(String line) {
+            String[] fields = line.split(" ");
+            try {
+                Entry entry = new Entry();
+                entry.time = Long.parseLong(fields[0]);
+                if (fields.length == 4 && fields[1].equals("done")) {
+                    entry.done = true;
+                    entry.servers = fields[3];
+                    return entry;
+                }
+                if (fields.length == 5 && fields[1].equals("failed")) {
+                    entry.attempts = Integer.parseInt(fields[3]);
+                    entry.servers = fields[4];
+                    return entry;
+                }
+            } catch (NumberFormatException e) {
+                // Damaged line
+            }
+            return null;
+        }
+    }
+}
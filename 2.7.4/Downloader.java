@@ -1,18 +1,16 @@
 import java.io.*;
-import java.net.*;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 
 public class Downloader {
 
     private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36";
-    private static final int CONNECT_TIMEOUT = 10000; // 10 seconds
     private static final int READ_TIMEOUT = 30000;    // 30 seconds
 
     public static void main(String[] args) {
@@ -68,7 +66,7 @@ public class Downloader {
 
             if (Files.exists(Paths.get(indexFile))) {
                 System.out.println("\nLocal HTML file available at: " + Paths.get(indexFile).toAbsolutePath());
-                System.out.println("Note: This file reflects the content from the last successful server query.");
+                System.out.println("Note: This file reflects the content from the first server that answered.");
             }
 
         } catch (IOException e) {
@@ -80,7 +78,9 @@ public class Downloader {
     }
 
     /**
-     * Iterates through all servers in servers.txt, downloads index files, and processes all linked assets.
+     * Asks all servers in servers.txt for the index file at once and processes the linked assets
+     * of each copy as it arrives, so downloads start after the fastest server's answer. The first
+     * copy is saved as the local index.html; later copies only add links not seen yet.
      */
     private static void processAllServers(String hash, String hashDir, String indexFile, String dataDir) throws IOException {
         String serversFile = "servers.txt";
@@ -93,47 +93,95 @@ public class Downloader {
             return;
         }
         
+        // Only query servers whose Bloom filter allows this hash; if every filter rules it out
+        // (a filter can be a few minutes stale), fall back to asking all of them
+        List<String> candidates = new ArrayList<>();
+        int listedServers = 0;
+        for (String server : servers) {
+            if (server.trim().isEmpty()) continue;
+            listedServers++;
+            if (PeerClient.mightHave(server.trim(), hash)) {
+                candidates.add(server);
+            }
+        }
+        if (candidates.isEmpty()) {
+            candidates = servers;
+        } else if (candidates.size() < listedServers) {
+            System.out.println("Skipping " + (listedServers - candidates.size()) + " server(s) whose Bloom filter rules out this hash.");
+        }
+
+        // Fastest and most reliable servers first; servers that failed recently are left out
+        int beforeCooldown = candidates.size();
+        candidates = Scoreboard.order(candidates);
+        if (candidates.size() < beforeCooldown) {
+            System.out.println("Skipping " + (beforeCooldown - candidates.size()) + " server(s) that failed recently.");
+        }
+
         List<String> successfulServers = new ArrayList<>();
         // Aggregated results from all servers
         List<Map<String, Object>> allDownloadedFiles = new ArrayList<>();
         List<Map<String, Object>> allFailedDownloads = new ArrayList<>();
-        Set<String> processedUrls = new HashSet<>(); // Avoids re-processing the same asset URL in one run
-
-        System.out.println("\nChecking all servers for content...");
+        Set<String> processedFiles = new HashSet<>(); // Local paths already fetched in this run, so each link is processed once
 
-        for (String server : servers) {
-            server = server.trim();
-            if (server.isEmpty()) continue;
-
-            String urlToCheck = buildProperUrl(server, hash, "index.html");
-            StringBuilder errorMessage = new StringBuilder();
-            
-            System.out.println("---------------------------------");
-            System.out.println("Querying Server: " + server);
-            
-            String pageContent = getContent(urlToCheck, errorMessage);
+        // Query every server at once and take the answers in the order they arrive
+        List<String> queried = new ArrayList<>();
+        for (String server : candidates) {
+            if (!server.trim().isEmpty()) {
+                queried.add(server.trim());
+            }
+        }
+        System.out.println("\nQuerying " + queried.size() + " server(s) at once...");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, queried.size()), r -> {
+            Thread thread = new Thread(r, "downloader-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<String[]> answers = new ExecutorCompletionService<>(pool);
+        long startTime = System.nanoTime();
+        for (String server : queried) {
+            answers.submit(() -> {
+                StringBuilder errorMessage = new StringBuilder();
+                String pageContent = getContent(buildProperUrl(server, hash, "index.html"), errorMessage);
+                return new String[]{server, pageContent, errorMessage.toString()};
+            });
+        }
+        pool.shutdown();
 
-            if (pageContent != null) {
-                System.out.println("SUCCESS: Found index.html on " + server);
+        try {
+            for (int i = 0; i < queried.size(); i++) {
+                String[] answer = answers.take().get();
+                String server = answer[0];
+                String pageContent = answer[1];
+
+                System.out.println("---------------------------------");
+                if (pageContent == null) {
+                    System.out.println("FAILURE: Could not retrieve index.html from " + server + ". Reason: " + answer[2]);
+                    continue;
+                }
+                System.out.printf("SUCCESS: Found index.html on %s after %d ms%n", server, (System.nanoTime() - startTime) / 1_000_000);
                 successfulServers.add(server);
 
-                // Create the hash-specific directory for the index file if it doesn't exist
-                Files.createDirectories(Paths.get(hashDir));
-                
-                // Save or overwrite the local index.html with the content from the current server
-                Files.write(Paths.get(indexFile), pageContent.getBytes());
-                
-                // Process linked files described in this index.html
+                if (successfulServers.size() == 1) {
+                    // Create the hash-specific directory and save the first copy as the local index.html
+                    Files.createDirectories(Paths.get(hashDir));
+                    Files.write(Paths.get(indexFile), pageContent.getBytes());
+                }
+
+                // Process linked files described in this index.html that no earlier copy linked to
                 System.out.println("Processing linked files from " + server + "...");
-                Map<String, List<Map<String, Object>>> results = downloadLinkedFiles(pageContent, server, hash, dataDir, processedUrls);
-                
+                Map<String, List<Map<String, Object>>> results = downloadLinkedFiles(pageContent, server, hash, dataDir, processedFiles);
+                if (successfulServers.size() > 1 && results.get("downloaded").isEmpty() && results.get("failed").isEmpty()) {
+                    System.out.println("No new links on " + server + ".");
+                }
+
                 // Aggregate results
                 allDownloadedFiles.addAll(results.get("downloaded"));
                 allFailedDownloads.addAll(results.get("failed"));
-
-            } else {
-                System.out.println("FAILURE: Could not retrieve index.html. Reason: " + errorMessage);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Query failed: " + e.getCause());
         }
         
         // Print the final aggregated results from all server queries
@@ -152,10 +200,11 @@ public class Downloader {
 
     /**
      * Downloads files linked within HTML, skipping files that already exist in the `data` directory.
-     * @param processedUrls A set of URLs that have already been queued for download in this session to prevent duplicates.
+     * @param processedFiles Local paths already handled in this session, so the same link found in another
+     *                       server's copy is skipped; a path whose download failed is removed so another server can supply it.
      */
     private static Map<String, List<Map<String, Object>>> downloadLinkedFiles(
-            String htmlContent, String baseServer, String hash, String dataDir, Set<String> processedUrls) throws IOException {
+            String htmlContent, String baseServer, String hash, String dataDir, Set<String> processedFiles) throws IOException {
         
         List<Map<String, Object>> downloadedFiles = new ArrayList<>();
         List<Map<String, Object>> failedDownloads = new ArrayList<>();
@@ -179,12 +228,6 @@ public class Downloader {
                 baseServer = baseServer.replaceAll("/+$", "");
                 processedUrl = originalUrl.startsWith("/") ? baseServer + originalUrl : buildProperUrl(baseServer, hash, originalUrl);
             }
-            
-            // Skip if this URL has already been processed in this run
-            if (processedUrls.contains(processedUrl)) {
-                continue;
-            }
-            processedUrls.add(processedUrl); // Mark as processed for this session
 
             String filename = sanitizeFilename(processedUrl.replaceAll(".*/", ""));
             if (filename.isEmpty()) filename = "index.html";
@@ -193,6 +236,11 @@ public class Downloader {
             String fileDir = dataDir + File.separator + sanitizeFilename(filenameWithoutExt);
             String filePath = fileDir + File.separator + filename;
 
+            // Skip if this file has already been processed in this run, from this server or another
+            if (!processedFiles.add(filePath)) {
+                continue;
+            }
+
             if (Files.exists(Paths.get(filePath))) {
                 Map<String, Object> fileInfo = new HashMap<>();
                 fileInfo.put("url", processedUrl);
@@ -204,25 +252,18 @@ public class Downloader {
             }
             
             StringBuilder errorMessage = new StringBuilder();
-            byte[] fileContent = getContentBytes(processedUrl, errorMessage);
-
-            if (fileContent != null) {
-                try {
-                    Files.createDirectories(Paths.get(fileDir));
-                    Files.write(Paths.get(filePath), fileContent);
-                    Map<String, Object> fileInfo = new HashMap<>();
-                    fileInfo.put("url", processedUrl);
-                    fileInfo.put("local_path", filePath);
-                    fileInfo.put("size", (long) fileContent.length);
-                    fileInfo.put("status", "downloaded");
-                    downloadedFiles.add(fileInfo);
-                } catch (IOException e) {
-                    Map<String, Object> failedInfo = new HashMap<>();
-                    failedInfo.put("url", processedUrl);
-                    failedInfo.put("error", "Failed to write file to disk: " + e.getMessage());
-                    failedDownloads.add(failedInfo);
-                }
+            Files.createDirectories(Paths.get(fileDir));
+            long fileSize = downloadToFile(processedUrl, Paths.get(filePath), errorMessage);
+
+            if (fileSize >= 0) {
+                Map<String, Object> fileInfo = new HashMap<>();
+                fileInfo.put("url", processedUrl);
+                fileInfo.put("local_path", filePath);
+                fileInfo.put("size", fileSize);
+                fileInfo.put("status", "downloaded");
+                downloadedFiles.add(fileInfo);
             } else {
+                processedFiles.remove(filePath); // Another server's copy may link to a working source
                 Map<String, Object> failedInfo = new HashMap<>();
                 failedInfo.put("url", processedUrl);
                 failedInfo.put("error", errorMessage.toString());
@@ -244,63 +285,157 @@ public class Downloader {
     }
 
     private static byte[] getContentBytes(String url, StringBuilder errorMessage) {
-        HttpURLConnection connection = null;
         try {
-            URL urlObj = new URL(url);
-            connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("User-Agent", USER_AGENT);
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            connection.setInstanceFollowRedirects(true);
-
-            if (connection instanceof HttpsURLConnection) {
-                trustAllCertificates();
-            }
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode >= 400) {
-                errorMessage.append("HTTP status code: ").append(responseCode);
-                return null;
-            }
-
-            try (InputStream in = connection.getInputStream();
-                 ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+            HttpResponse<InputStream> response = open(url, 0);
+            try (InputStream in = response.body()) {
+                if (response.statusCode() >= 400) {
+                    errorMessage.append("HTTP status code: ").append(response.statusCode());
+                    return null;
                 }
-                return out.toByteArray();
+                return in.readAllBytes();
             }
         } catch (Exception e) {
             errorMessage.append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
             return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends a GET with the browser User-Agent, from byte offset on when offset is not 0. The
+     * shared client follows redirects and accepts any certificate; the caller closes the body.
+     */
+    private static HttpResponse<InputStream> open(String url, long offset) throws IOException {
+        return open(url, offset, null);
+    }
+
+    /**
+     * As open(url, offset), sending validator as If-Range so a changed file comes back whole
+     */
+    private static HttpResponse<InputStream> open(String url, long offset, String validator) throws IOException {
+        HttpRequest.Builder request = Transport.request(url, READ_TIMEOUT).header("User-Agent", USER_AGENT);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+            if (validator != null) {
+                request.header("If-Range", validator);
             }
         }
+        return Transport.open(Transport.trustingClient(), request.build(), READ_TIMEOUT);
     }
 
-    private static void trustAllCertificates() {
+    /**
+     * Streams url to filePath through filePath.part. A .part left by an interrupted run is
+     * continued with "Range: bytes=N-" when the server answers with a matching 206, and is
+     * otherwise rewritten from the start. If the file is named after a SHA-256 the content is
+     * checked before it is moved into place. Returns the file size, or -1 with errorMessage set;
+     * the .part is kept after a network error so the next run can resume it.
+     *
+     * A file named after a hash may be continued from any server, since the hash catches a bad
+     * join. Any other file can only be checked against its source, so filePath.part.src records
+     * the URL and the ETag or Last-Modified the part came with; the part is continued only from
+     * that URL and only while the server reports the same version, and is started over otherwise.
+     */
+    private static long downloadToFile(String url, Path filePath, StringBuilder errorMessage) {
+        Path partPath = filePath.resolveSibling(filePath.getFileName() + ".part");
+        Path sourcePath = filePath.resolveSibling(filePath.getFileName() + ".part.src");
+        String expectedHash = getFilenameWithoutExtension(filePath.getFileName().toString());
+        boolean hashed = isValidSha256(expectedHash);
         try {
-            TrustManager[] trustAllCerts = new TrustManager[]{
-                new X509TrustManager() {
-                    public java.security.cert.X509Certificate[] getAcceptedIssuers() { return null; }
-                    public void checkClientTrusted(java.security.cert.X509Certificate[] certs, String authType) {}
-                    public void checkServerTrusted(java.security.cert.X509Certificate[] certs, String authType) {}
+            for (int attempt = 0; attempt < 2; attempt++) {
+                String validator = null;
+                if (!hashed && Files.exists(partPath)) {
+                    validator = partValidator(sourcePath, url);
+                    if (validator == null) {
+                        Files.delete(partPath); // From another source, or one that cannot be checked
+                    }
                 }
-            };
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-            HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
+                long offset = Files.exists(partPath) ? Files.size(partPath) : 0;
+                HttpResponse<InputStream> response = open(url, offset, validator);
+                try (InputStream in = response.body()) {
+                    int responseCode = response.statusCode();
+                    if (responseCode == 416 && offset > 0) {
+                        // Nothing past the part: either it is already complete or it is stale
+                        if (isValidSha256(expectedHash) && expectedHash.equals(sha256Hex(partPath))) {
+                            break;
+                        }
+                        Files.delete(partPath);
+                        continue;
+                    }
+                    if (responseCode >= 400) {
+                        errorMessage.append("HTTP status code: ").append(responseCode);
+                        return -1;
+                    }
+
+                    // Append only if the server continues exactly where the part ends
+                    String contentRange = response.headers().firstValue("Content-Range").orElse(null);
+                    boolean append = offset > 0 && responseCode == 206
+                            && contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+                    if (responseCode == 206 && !append) {
+                        errorMessage.append("Unexpected Content-Range: ").append(contentRange);
+                        return -1;
+                    }
+                    if (!hashed) {
+                        String current = validator(response);
+                        if (append && !validator.equals(current)) {
+                            Files.delete(partPath); // The file changed on the server
+                            continue;
+                        }
+                        if (!append) {
+                            writeSource(sourcePath, url, current);
+                        }
+                    }
+                    OpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+                    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partPath,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode), 65536)) {
+                        in.transferTo(out);
+                    }
+                    break;
+                }
+            }
+            if (!Files.exists(partPath)) {
+                errorMessage.append("Server refused the range request");
+                return -1;
+            }
+
+            if (hashed && !expectedHash.equals(sha256Hex(partPath))) {
+                Files.delete(partPath);
+                errorMessage.append("Content does not match hash ").append(expectedHash);
+                return -1;
+            }
+            Files.move(partPath, filePath, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(sourcePath);
+            return Files.size(filePath);
         } catch (Exception e) {
-            e.printStackTrace();
+            errorMessage.append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
+            return -1;
         }
     }
 
+    /**
+     * The validator recorded for a .part, or null unless it came from url with one
+     */
+    private static String partValidator(Path sourcePath, String url) throws IOException {
+        if (!Files.exists(sourcePath)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(sourcePath, StandardCharsets.UTF_8);
+        return lines.size() == 2 && lines.get(0).equals(url) && !lines.get(1).isEmpty() ? lines.get(1) : null;
+    }
+
+    /**
+     * The strong ETag of a response, else its Last-Modified, else an empty string
+     */
+    private static String validator(HttpResponse<InputStream> response) {
+        String etag = response.headers().firstValue("ETag").orElse("");
+        if (!etag.isEmpty() && !etag.startsWith("W/")) {
+            return etag; // Weak ETags may not be used in If-Range
+        }
+        return response.headers().firstValue("Last-Modified").orElse("");
+    }
+
+    private static void writeSource(Path sourcePath, String url, String validator) throws IOException {
+        Files.write(sourcePath, (url + "\n" + validator + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
     private static String buildProperUrl(String server, String hash, String filename) {
         server = server.replaceAll("/+$", "");
         return server + "/data/" + hash + "/" + filename;
@@ -323,21 +458,38 @@ public class Downloader {
     private static String generateSha256(String input) {
         try {
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(input.getBytes("UTF-8"));
-            StringBuilder hexString = new StringBuilder(2 * hashBytes.length);
-            for (byte b : hashBytes) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
-            }
-            return hexString.toString();
+            return toHex(digest.digest(input.getBytes("UTF-8")));
         } catch (Exception e) {
             throw new RuntimeException("Error generating SHA-256 hash", e);
         }
     }
 
+    private static String sha256Hex(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            return toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    private static String toHex(byte[] hashBytes) {
+        StringBuilder hexString = new StringBuilder(2 * hashBytes.length);
+        for (byte b : hashBytes) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
     private static void printDownloadResults(Map<String, List<Map<String, Object>>> results) {
         List<Map<String, Object>> downloaded = results.get("downloaded");
         List<Map<String, Object>> failed = results.get("failed");
@@ -1,18 +1,13 @@
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
-import java.security.cert.X509Certificate;
 import java.util.List;
 import java.util.*;
 import java.util.regex.Matcher;
@@ -28,7 +23,6 @@ public class DownloaderGUI extends JFrame {
 
     // --- Constants from original code ---
     private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/58.0.3029.110 Safari/537.36";
-    private static final int CONNECT_TIMEOUT = 10000; // 10 seconds
     private static final int READ_TIMEOUT = 30000;    // 30 seconds
     private static final String DATA_SERVERS_DIR = "data_servers";
     private static final String DATA_DIR = "data";
@@ -187,7 +181,8 @@ public class DownloaderGUI extends JFrame {
                 throw new FileNotFoundException("'" + SERVERS_FILE + "' file not found. Please create it in the application directory.");
             }
 
-            List<String> servers = Files.readAllLines(serversPath);
+            // Fastest and most reliable servers first; servers that failed recently are left out
+            List<String> servers = Scoreboard.order(Files.readAllLines(serversPath));
             List<Map<String, String>> foundServers = new ArrayList<>();
             boolean contentSaved = false;
 
@@ -323,81 +318,27 @@ public class DownloaderGUI extends JFrame {
      * Downloads content from a URL as a string.
      */
     private static String getContent(String url, StringBuilder errorMessage) {
-        HttpURLConnection connection = null;
-        try {
-            URL urlObj = new URL(url);
-            connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("User-Agent", USER_AGENT);
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-
-            if (url.startsWith("https")) {
-                trustAllCertificates();
-            }
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode >= 400) {
-                errorMessage.append("HTTP status code: ").append(responseCode);
-                return null;
-            }
-
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                StringBuilder response = new StringBuilder();
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) {
-                    response.append(inputLine).append("\n");
-                }
-                return response.toString();
-            }
-        } catch (Exception e) {
-            errorMessage.append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-        }
+        byte[] contentBytes = getContentBytes(url, errorMessage);
+        return contentBytes != null ? new String(contentBytes) : null;
     }
 
     /**
      * Downloads content from a URL as a byte array.
      */
     private static byte[] getContentBytes(String url, StringBuilder errorMessage) {
-        HttpURLConnection connection = null;
         try {
-            URL urlObj = new URL(url);
-            connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setRequestProperty("User-Agent", USER_AGENT);
-            connection.setConnectTimeout(CONNECT_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-
-            if (url.startsWith("https")) {
-                trustAllCertificates();
-            }
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode >= 400) {
-                errorMessage.append("HTTP status code: ").append(responseCode);
-                return null;
-            }
-
-            try (InputStream in = connection.getInputStream(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+            HttpRequest request = Transport.request(url, READ_TIMEOUT).header("User-Agent", USER_AGENT).build();
+            HttpResponse<InputStream> response = Transport.open(Transport.trustingClient(), request, READ_TIMEOUT);
+            try (InputStream in = response.body()) {
+                if (response.statusCode() >= 400) {
+                    errorMessage.append("HTTP status code: ").append(response.statusCode());
+                    return null;
                 }
-                return out.toByteArray();
+                return in.readAllBytes();
             }
         } catch (Exception e) {
             errorMessage.append(e.getClass().getSimpleName()).append(": ").append(e.getMessage());
             return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
     }
 
@@ -539,26 +480,6 @@ public class DownloaderGUI extends JFrame {
         return (lastDot > 0) ? path.substring(0, lastDot) : (path.isEmpty() ? "file" : path);
     }
 
-    /**
-     * Trusts all SSL certificates. Insecure, for development/testing only.
-     */
-    private static void trustAllCertificates() {
-        try {
-            HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
-            TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-                public X509Certificate[] getAcceptedIssuers() { return null; }
-                public void checkClientTrusted(X509Certificate[] certs, String authType) {}
-                public void checkServerTrusted(X509Certificate[] certs, String authType) {}
-            }};
-            SSLContext sc = SSLContext.getInstance("SSL");
-            sc.init(null, trustAllCerts, new java.security.SecureRandom());
-            HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-        } catch (Exception e) {
-            // In a GUI app, we prefer not to print stack traces to console
-            System.err.println("Warning: Could not install trust manager. HTTPS requests might fail. " + e.getMessage());
-        }
-    }
-
     /**
      * Main method to launch the GUI.
      */
@@ -0,0 +1,241 @@
+/**
+ * Systematic Reed-Solomon coding over GF(2^8).
+ *
+ * An object is cut into k data shards of equal size and m parity shards are computed from
+ * them, so the object can be rebuilt from any k of the k + m shards. The coding matrix is a
+ * Vandermonde matrix normalized so its first k rows are the identity: data shards are the
+ * object's own bytes, and every k rows remain invertible. Field arithmetic uses log/exp tables
+ * for the polynomial x^8 + x^4 + x^3 + x^2 + 1.
+ */
+public class ErasureCoder {
+    private static final int FIELD_POLYNOMIAL = 0x11d;
+    private static final byte[] EXP = new byte[510]; // Doubled so a sum of two logs needs no modulo
+    private static final int[] LOG = new int[256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            EXP[i + 255] = (byte) x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= FIELD_POLYNOMIAL;
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // (k + m) x k
+
+    public ErasureCoder(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("Need 1 <= k and k + m <= 256, got k=" + dataShards + " m=" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int row = 0; row < total; row++) {
+            for (int col = 0; col < dataShards; col++) {
+                vandermonde[row][col] = power((byte) row, col);
+            }
+        }
+        byte[][] topInverse = invert(subMatrix(vandermonde, 0, dataShards));
+        this.matrix = multiply(vandermonde, topInverse);
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Size of each shard for an object of the given length
+     */
+    public int shardSize(long length) {
+        return (int) Math.max(1, (length + dataShards - 1) / dataShards);
+    }
+
+    /**
+     * Splits data into k data shards (the last one zero-padded) followed by m parity shards
+     */
+    public byte[][] encode(byte[] data) {
+        int shardSize = shardSize(data.length);
+        byte[][] shards = new byte[totalShards()][shardSize];
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            if (from < data.length) {
+                System.arraycopy(data, from, shards[i], 0, Math.min(shardSize, data.length - from));
+            }
+        }
+        for (int row = dataShards; row < totalShards(); row++) {
+            combine(matrix[row], shards, shards[row], shardSize);
+        }
+        return shards;
+    }
+
+    /**
+     * Rebuilds the original object from any k shards. Missing shards are null; all present
+     * shards must have the same size.
+     */
+    public byte[] decode(byte[][] shards, long length) {
+        if (shards.length != totalShards()) {
+            throw new IllegalArgumentException("Expected " + totalShards() + " shards, got " + shards.length);
+        }
+        int[] rows = new int[dataShards];
+        int found = 0;
+        int shardSize = -1;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (shards[i] != null) {
+                if (shardSize != -1 && shards[i].length != shardSize) {
+                    throw new IllegalArgumentException("Shard " + i + " has a different size");
+                }
+                shardSize = shards[i].length;
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards, only " + found + " present");
+        }
+
+        // Invert the rows of the coding matrix belonging to the shards we have
+        byte[][] available = new byte[dataShards][];
+        byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            available[i] = matrix[rows[i]];
+            inputs[i] = shards[rows[i]];
+        }
+        byte[][] decodeMatrix = invert(available);
+
+        byte[] data = new byte[(int) length];
+        for (int i = 0; i < dataShards; i++) {
+            int from = i * shardSize;
+            if (from >= data.length) {
+                break;
+            }
+            byte[] shard;
+            if (rows[i] == i) {
+                shard = inputs[i]; // Data shard present as is
+            } else {
+                shard = new byte[shardSize];
+                combine(decodeMatrix[i], inputs, shard, shardSize);
+            }
+            System.arraycopy(shard, 0, data, from, Math.min(shardSize, data.length - from));
+        }
+        return data;
+    }
+
+    /**
+     * output = sum over j of coefficients[j] * inputs[j]
+     */
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] output, int size) {
+        for (int j = 0; j < coefficients.length; j++) {
+            int c = coefficients[j] & 0xff;
+            if (c == 0) {
+                continue;
+            }
+            int logC = LOG[c];
+            byte[] input = inputs[j];
+            for (int b = 0; b < size; b++) {
+                int v = input[b] & 0xff;
+                if (v != 0) {
+                    output[b] ^= EXP[logC + LOG[v]];
+                }
+            }
+        }
+    }
+
+    private static byte mul(byte a, byte b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xff] + LOG[b & 0xff]];
+    }
+
+    private static byte div(byte a, byte b) {
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[LOG[a & 0xff] + 255 - LOG[b & 0xff]];
+    }
+
+    private static byte power(byte a, int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a & 0xff] * n) % 255];
+    }
+
+    private static byte[][] subMatrix(byte[][] m, int fromRow, int toRow) {
+        byte[][] result = new byte[toRow - fromRow][];
+        for (int i = fromRow; i < toRow; i++) {
+            result[i - fromRow] = m[i].clone();
+        }
+        return result;
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int i = 0; i < a.length; i++) {
+            for (int j = 0; j < b[0].length; j++) {
+                byte sum = 0;
+                for (int x = 0; x < b.length; x++) {
+                    sum ^= mul(a[i][x], b[x][j]);
+                }
+                result[i][j] = sum;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gauss-Jordan inversion of a square matrix
+     */
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(m[i], 0, work[i], 0, n);
+            work[i][n + i] = 1;
+        }
+        for (int col = 0; col < n; col++) {
+            int pivot = col;
+            while (pivot < n && work[pivot][col] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalArgumentException("Matrix is singular");
+            }
+            byte[] swap = work[col];
+            work[col] = work[pivot];
+            work[pivot] = swap;
+
+            byte scale = work[col][col];
+            for (int j = 0; j < 2 * n; j++) {
+                work[col][j] = div(work[col][j], scale);
+            }
+            for (int row = 0; row < n; row++) {
+                byte factor = work[row][col];
+                if (row != col && factor != 0) {
+                    for (int j = 0; j < 2 * n; j++) {
+                        work[row][j] ^= mul(factor, work[col][j]);
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(work[i], n, inverse[i], 0, n);
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Erasure-coded storage across the servers in servers.txt.
+ *
+ * Instead of copying a whole file to every server, "put" splits it into k data and m parity
+ * shards (ErasureCoder) and stores each on a different server, so it survives the loss of any
+ * m of them at (k + m) / k times its size. Shard i of a hash goes to the i-th server in the
+ * rendezvous order for that hash, which moves few shards when servers.txt changes. Repair
+ * puts a lost shard on the next live server in that order, preferring servers that do not
+ * already hold a shard of the object.
+ *
+ *   java ErasureStore put <file>         encode a file and upload its shards
+ *   java ErasureStore get <hash>.<ext>   rebuild a file into data/<hash>/
+ *   java ErasureStore repair [files]     re-create missing shards of every file in files.txt
+ *
+ * Each shard starts with a header: the magic "DHRS", k, m, the shard index, the object size and
+ * the SHA-256 of the shard's payload. Shards that fail the checksum are skipped like missing
+ * ones, so a damaged shard is not fed to the decoder; servers only let such a shard be
+ * overwritten. k and m for new objects come from decenhash.ec.dataShards and decenhash.ec.parityShards.
+ *
+ * Objects are encoded in memory, and servers accept shards of up to MAX_SHARD_SIZE, so put
+ * refuses an object whose shards would be larger than that (about 256 MB at k = 4) before
+ * reading it; raise k to store larger ones.
+ */
+public class ErasureStore {
+    private static final int MAGIC = 0x44485253; // "DHRS"
+    private static final int HEADER_SIZE = 56; // Magic, k, m, index, size, SHA-256 of the payload
+    private static final int DATA_SHARDS = Integer.getInteger("decenhash.ec.dataShards", 4);
+    private static final int PARITY_SHARDS = Integer.getInteger("decenhash.ec.parityShards", 2);
+    static final int MAX_SHARD_SIZE = 64 * 1024 * 1024; // Largest shard a server accepts, header included
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: java ErasureStore put <file> | get <hash>.<ext> | repair [files.txt]");
+            return;
+        }
+
+        List<String> servers = readServers();
+        if (servers == null) {
+            System.err.println("Error reading servers.txt");
+            return;
+        }
+
+        try {
+            switch (args[0]) {
+                case "put":
+                    put(Paths.get(args[1]), servers);
+                    break;
+                case "get":
+                    get(args[1], servers);
+                    break;
+                case "repair":
+                    repair(Paths.get(args.length > 1 ? args[1] : "files.txt"), servers);
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[0]);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a file and uploads each shard to its server
+     */
+    private static void put(Path file, List<String> servers) throws IOException {
+        ErasureCoder coder = new ErasureCoder(DATA_SHARDS, PARITY_SHARDS);
+        long length = Files.size(file);
+        long shardBytes = HEADER_SIZE + Math.max(1, (length + DATA_SHARDS - 1) / DATA_SHARDS);
+        if (shardBytes > MAX_SHARD_SIZE) {
+            throw new IOException(file + " is too large for " + DATA_SHARDS + " data shards: each shard would be "
+                    + shardBytes + " bytes and servers accept at most " + MAX_SHARD_SIZE
+                    + "; raise decenhash.ec.dataShards to at least " + ((length - 1) / (MAX_SHARD_SIZE - HEADER_SIZE) + 1));
+        }
+        byte[] data = Files.readAllBytes(file);
+        String hash = sha256Hex(data);
+        if (servers.size() < coder.totalShards()) {
+            System.err.println("Warning: " + coder.totalShards() + " shards on " + servers.size()
+                    + " servers; some servers hold several shards");
+        }
+
+        byte[][] shards = coder.encode(data);
+        List<String> placement = placement(hash, servers);
+        int stored = 0;
+        for (int i = 0; i < shards.length; i++) {
+            String server = placement.get(i % placement.size());
+            if (PeerClient.put(shardUrl(server, hash, i), withHeader(shards[i], DATA_SHARDS, PARITY_SHARDS, i, data.length))) {
+                stored++;
+            } else {
+                System.err.println("Could not store shard " + i + " on " + server);
+            }
+        }
+        System.out.println(hash + getFileExtension(file.getFileName().toString()) + ": stored "
+                + stored + " of " + shards.length + " shards");
+    }
+
+    /**
+     * Rebuilds a file from any k shards and saves it as data/<hash>/<hash>.<ext> through a
+     * temporary file, so a failed write never leaves a partial object under its hash
+     */
+    private static void get(String filename, List<String> servers) throws IOException {
+        String hash = getFilenameWithoutExtension(filename);
+        Shards shards = fetch(hash, servers, false);
+        byte[] data = shards.decode(hash);
+
+        Path targetDir = Paths.get("data", hash);
+        Files.createDirectories(targetDir);
+        Path tmp = Files.createTempFile(targetDir, hash, ".part");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, targetDir.resolve(hash + getFileExtension(filename)),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        System.out.println("Rebuilt " + filename + " from " + shards.present() + " shards");
+    }
+
+    /**
+     * Recreates and re-uploads the missing shards of every file listed
+     */
+    private static void repair(Path filesList, List<String> servers) throws IOException {
+        int repaired = 0;
+        int failed = 0;
+        for (String filename : Files.readAllLines(filesList)) {
+            filename = filename.trim();
+            if (filename.isEmpty()) {
+                continue;
+            }
+            String hash = getFilenameWithoutExtension(filename);
+            try {
+                Shards shards = fetch(hash, servers, true);
+                if (shards.present() == shards.coder.totalShards()) {
+                    continue;
+                }
+                byte[] data = shards.decode(hash);
+                byte[][] rebuilt = shards.coder.encode(data);
+                List<String> placement = placement(hash, servers);
+                for (int i = 0; i < rebuilt.length; i++) {
+                    if (shards.shards[i] != null) {
+                        continue;
+                    }
+                    byte[] shard = withHeader(rebuilt[i], shards.coder.dataShards(),
+                            shards.coder.totalShards() - shards.coder.dataShards(), i, data.length);
+
+                    // Servers from the shard's own position on, those without a shard of this object first
+                    List<String> candidates = new ArrayList<>();
+                    for (int attempt = 0; attempt < placement.size(); attempt++) {
+                        candidates.add(placement.get((i + attempt) % placement.size()));
+                    }
+                    candidates.sort(Comparator.comparing(server -> shards.holders.contains(server)));
+
+                    String storedOn = null;
+                    for (String server : candidates) {
+                        if (PeerClient.put(shardUrl(server, hash, i), shard)) {
+                            storedOn = server;
+                            break;
+                        }
+                    }
+                    if (storedOn != null) {
+                        shards.holders.add(storedOn);
+                        repaired++;
+                    } else {
+                        System.err.println("Could not store shard " + i + " of " + filename + " on any server");
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Cannot repair " + filename + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        System.out.println("Repair finished: " + repaired + " shard(s) re-created, " + failed + " file(s) unrecoverable");
+    }
+
+    /**
+     * Collects the shards of a hash, asking each shard's own server first and then the others.
+     * With all set, every shard is looked for; otherwise fetching stops once k are present.
+     */
+    private static Shards fetch(String hash, List<String> servers, boolean all) throws IOException {
+        List<String> placement = placement(hash, servers);
+        Shards result = null;
+        int total = DATA_SHARDS + PARITY_SHARDS; // Replaced by the header of the first shard found
+        for (int i = 0; i < total; i++) {
+            if (!all && result != null && result.present() >= result.coder.dataShards()) {
+                break;
+            }
+            for (int attempt = 0; attempt < placement.size(); attempt++) {
+                String server = placement.get((i + attempt) % placement.size());
+                byte[] body;
+                try (InputStream in = PeerClient.openStream(shardUrl(server, hash, i))) {
+                    if (in == null) {
+                        continue;
+                    }
+                    body = in.readNBytes(MAX_SHARD_SIZE + 1);
+                } catch (IOException e) {
+                    continue; // Server down; try the next one
+                }
+                if (body.length > MAX_SHARD_SIZE) {
+                    continue; // No server stores a shard this large
+                }
+
+                if (!isIntact(body, i)) {
+                    System.err.println("Shard " + i + " of " + hash + " on " + server + " is damaged");
+                    continue;
+                }
+                ByteBuffer header = ByteBuffer.wrap(body);
+                header.getInt(); // Magic
+                int k = header.getInt();
+                int m = header.getInt();
+                int index = header.getInt();
+                long size = header.getLong();
+                if (k < 1 || m < 0 || k + m > 256) {
+                    continue;
+                }
+                if (result == null) {
+                    result = new Shards(new ErasureCoder(k, m), size);
+                    total = k + m;
+                } else if (k != result.coder.dataShards() || k + m != result.coder.totalShards() || size != result.size) {
+                    continue; // Shard of a different encoding
+                }
+                if (body.length - HEADER_SIZE != result.coder.shardSize(size)) {
+                    continue;
+                }
+                result.shards[i] = Arrays.copyOfRange(body, HEADER_SIZE, body.length);
+                result.holders.add(server);
+                break;
+            }
+        }
+        if (result == null) {
+            throw new IOException("no shards of " + hash + " found");
+        }
+        return result;
+    }
+
+    /**
+     * Servers in rendezvous order for a hash: sorted by SHA-256(hash + server)
+     */
+    static List<String> placement(String hash, List<String> servers) {
+        List<String> ordered = new ArrayList<>(servers);
+        Map<String, String> scores = new HashMap<>();
+        for (String server : ordered) {
+            scores.put(server, sha256Hex((hash + PeerClient.baseUrl(server)).getBytes(StandardCharsets.UTF_8)));
+        }
+        ordered.sort(Comparator.comparing(scores::get));
+        return ordered;
+    }
+
+    private static String shardUrl(String server, String hash, int index) {
+        return PeerClient.baseUrl(server) + "/shards/" + hash + "/" + index;
+    }
+
+    private static byte[] withHeader(byte[] shard, int k, int m, int index, long size) {
+        return ByteBuffer.allocate(HEADER_SIZE + shard.length)
+                .putInt(MAGIC).putInt(k).putInt(m).putInt(index).putLong(size)
+                .put(HashIndex.hexToBytes(sha256Hex(shard)))
+                .put(shard).array();
+    }
+
+    /**
+     * True if body is shard index of an object and its payload matches the checksum in its header
+     */
+    static boolean isIntact(byte[] body, int index) {
+        if (body.length <= HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.wrap(body);
+        if (header.getInt() != MAGIC || header.getInt(12) != index) {
+            return false;
+        }
+        byte[] checksum = Arrays.copyOfRange(body, HEADER_SIZE - 32, HEADER_SIZE);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(body, HEADER_SIZE, body.length - HEADER_SIZE);
+            return MessageDigest.isEqual(digest.digest(), checksum);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    /**
+     * Shards collected for one object; missing ones are null
+     */
+    private static class Shards {
+        final ErasureCoder coder;
+        final long size;
+        final byte[][] shards;
+        final Set<String> holders = new HashSet<>(); // Servers holding at least one shard
+
+        Shards(ErasureCoder coder, long size) {
+            this.coder = coder;
+            this.size = size;
+            this.shards = new byte[coder.totalShards()][];
+        }
+
+        int present() {
+            int count = 0;
+            for (byte[] shard : shards) {
+                if (shard != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Decodes the object and checks that it hashes to its name
+         */
+        byte[] decode(String hash) throws IOException {
+            byte[] data = coder.decode(shards, size);
+            if (!sha256Hex(data).equals(hash)) {
+                throw new IOException("rebuilt content does not match hash " + hash);
+            }
+            return data;
+        }
+    }
+
+    private static List<String> readServers() {
+        try {
+            List<String> servers = new ArrayList<>();
+            for (String line : Files.readAllLines(Paths.get("servers.txt"))) {
+                if (!line.trim().isEmpty()) {
+                    servers.add(line.trim());
+                }
+            }
+            return servers.isEmpty() ? null : servers;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String getFilenameWithoutExtension(String filename) {
+        int dotIndex = filename.lastIndexOf('.');
+        return (dotIndex == -1) ? filename : filename.substring(0, dotIndex);
+    }
+
+    private static String getFileExtension(String filename) {
+        int dotIndex = filename.lastIndexOf('.');
+        return (dotIndex == -1) ? "" : filename.substring(dotIndex);
+    }
+
+    private static String sha256Hex(byte[] data) {
+        try {
+            return HashIndex.bytesToHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+}
@@ -4,12 +4,20 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -20,7 +28,34 @@ import com.sun.net.httpserver.HttpServer;
 public class FileUploadServer {
     private static final String UPLOAD_DIR_BASE = "data"; // Base directory for all uploads
     private static final Pattern SHA256_REGEX = Pattern.compile("^[a-f0-9]{64}$");
-    private static final int PORT = 8080;
+    private static final Pattern HASH_PREFIX_REGEX = Pattern.compile("^[a-f0-9]{8,63}$");
+    private static final Pattern MERKLE_PREFIX_REGEX = Pattern.compile("^[a-f0-9]{0," + HashIndex.MERKLE_LEAF_DEPTH + "}$");
+    private static final int PORT = Integer.getInteger("decenhash.port", 8080);
+    private static final String INDEX_DIR_BASE = "index"; // Base directory for search indexes
+    private static final String CHUNKS_DIR_BASE = "chunks"; // Base directory for deduplicated chunks
+    private static final String SHARDS_DIR_BASE = "shards"; // Base directory for erasure-coded shards held for peers
+    private static final Pattern SHARD_PATH_REGEX = Pattern.compile("^/shards/([a-f0-9]{64})/(\\d{1,3})$");
+    private static final int MAX_SHARD_SIZE = ErasureStore.MAX_SHARD_SIZE;
+    private static final Pattern RANGE_REGEX = Pattern.compile("^bytes=(\\d{0,18})-(\\d{0,18})$"); // Single byte ranges only
+    private static final boolean CHUNK_STORE_ENABLED = Boolean.getBoolean("decenhash.chunkStore");
+    private static final long CHUNK_STORE_THRESHOLD = Long.getLong("decenhash.chunkStoreThreshold", 8L * 1024 * 1024);
+    private static final boolean COMPRESS_ENABLED = Boolean.getBoolean("decenhash.compress"); // Deflate text objects and index.html at rest
+    private static final long TEXT_INDEX_MEMORY = Long.getLong("decenhash.textIndexMemory", 16L * 1024 * 1024);
+    private static final int SEARCH_LIMIT = 50;
+    private static final int PREFIX_MATCH_LIMIT = 100;
+    private static final int MAX_HAVE_HASHES = 100000; // Hashes accepted per /have request
+    private static final int MANIFEST_PAGE = 10000; // Default and maximum /manifest page sizes
+    private static final int MAX_MANIFEST_PAGE = 100000;
+    private static final long BLOOM_REBUILD_MINUTES = 10; // Also the Cache-Control max-age of /bloom
+    private static final double BLOOM_FALSE_POSITIVE_RATE = 0.01;
+
+    private static TextIndex textIndex;
+    private static HashIndex hashIndex;
+    private static Manifest manifest;
+    private static final ChunkStore chunkStore = new ChunkStore(Paths.get(CHUNKS_DIR_BASE));
+    private static BloomFilter bloomFilter; // guarded by BLOOM_LOCK
+    private static byte[] bloomBytes; // Serialized bloomFilter, null after a change; guarded by BLOOM_LOCK
+    private static final Object BLOOM_LOCK = new Object();
 
     public static void main(String[] args) throws Exception {
         // Create upload directory if it doesn't exist
@@ -29,6 +64,59 @@ public class FileUploadServer {
             uploadDir.mkdirs();
         }
 
+        // Open the sorted hash index used for prefix lookups and the manifest other nodes sync from
+        hashIndex = new HashIndex(Paths.get(INDEX_DIR_BASE, "hashes.idx"));
+        manifest = new Manifest(Paths.get(INDEX_DIR_BASE, "manifest.log"));
+        if (manifest.head() == 0) {
+            // First run with a manifest: log everything already indexed
+            final IOException[] seedError = new IOException[1];
+            hashIndex.forEach(hash -> {
+                try {
+                    manifest.append(hash);
+                } catch (IOException e) {
+                    seedError[0] = e;
+                }
+            });
+            if (seedError[0] != null) {
+                throw seedError[0];
+            }
+        }
+        
+        // Pick up directories created while the server was offline
+        for (String hash : hashIndex.refresh(uploadDir.toPath())) {
+            manifest.append(hash);
+        }
+        hashIndex.rebuild();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                hashIndex.rebuild();
+                manifest.close();
+            } catch (IOException e) {
+                System.err.println("Error saving hash index: " + e.getMessage());
+            }
+        }));
+
+        // Publish a Bloom filter of the stored hashes, resized periodically as the store grows
+        rebuildBloomFilter();
+        ScheduledExecutorService bloomScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "bloom-filter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        bloomScheduler.scheduleWithFixedDelay(() -> {
+            try {
+                rebuildBloomFilter();
+            } catch (IOException e) {
+                System.err.println("Error rebuilding Bloom filter: " + e.getMessage());
+            }
+        }, BLOOM_REBUILD_MINUTES, BLOOM_REBUILD_MINUTES, TimeUnit.MINUTES);
+
+        // Open the full-text index over text posts; index existing posts on first run and the
+        // posts a crash kept from reaching a segment on later ones
+        textIndex = new TextIndex(Paths.get(INDEX_DIR_BASE, "text"), TEXT_INDEX_MEMORY);
+        textIndex.backfill(uploadDir.toPath());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> textIndex.close()));
+
         // Create HTTP server
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
         
@@ -38,10 +126,38 @@ public class FileUploadServer {
         // Set up file server for the data_tmp directory
         server.createContext("/data/", new FileServerHandler());
         
+        // Set up chunk downloads so replicas only transfer chunks they lack
+        server.createContext("/chunks/", new ChunkHandler());
+        
+        // Set up storage of erasure-coded shards placed on this node by ErasureStore
+        server.createContext("/shards/", new ShardHandler());
+        
+        // Set up full-text search over text posts
+        server.createContext("/search", new SearchHandler());
+        
+        // Set up bulk availability lookups for other nodes and client tools
+        server.createContext("/have", new HaveHandler());
+        
+        // Set up the change feed other nodes sync from by cursor
+        server.createContext("/manifest", new ManifestHandler());
+        
+        // Set up Merkle summaries of the hash space for anti-entropy between nodes
+        server.createContext("/merkle", new MerkleHandler());
+        
+        // Set up the Bloom filter clients use to skip servers that lack a hash
+        server.createContext("/bloom", new BloomHandler());
+        
         server.setExecutor(null); // Use default executor
         server.start();
         
         System.out.println("Server started at :" + PORT);
+        
+        // Optionally keep this node converged with the peers in servers.txt
+        if (Boolean.getBoolean("decenhash.replicate")) {
+            new Replicator(uploadDir.toPath(), Paths.get("servers.txt"), hashIndex,
+                    CHUNK_STORE_ENABLED ? chunkStore : null, COMPRESS_ENABLED, FileUploadServer::registerHash).start();
+            System.out.println("Replication from servers.txt enabled");
+        }
     }
 
     /**
@@ -90,6 +206,55 @@ public class FileUploadServer {
         }
     }
 
+    /**
+     * Records a hash directory in the hash index and, if it is new, in the manifest
+     */
+    private static void registerHash(String hash) throws IOException {
+        if (hashIndex.add(hash)) {
+            manifest.append(hash);
+            synchronized (BLOOM_LOCK) {
+                bloomFilter.add(HashIndex.hexToBytes(hash));
+                bloomBytes = null;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the Bloom filter sized for the current store plus headroom for growth
+     */
+    private static void rebuildBloomFilter() throws IOException {
+        long start = manifest.head();
+        BloomFilter filter = new BloomFilter(hashIndex.size() + hashIndex.size() / 4 + 1024, BLOOM_FALSE_POSITIVE_RATE);
+        hashIndex.forEach(hash -> filter.add(HashIndex.hexToBytes(hash)));
+        
+        synchronized (BLOOM_LOCK) {
+            // Hashes registered while the filter was being built are in the manifest after start
+            for (String hash : manifest.read(start, (int) (manifest.head() - start))) {
+                filter.add(HashIndex.hexToBytes(hash));
+            }
+            bloomFilter = filter;
+            bloomBytes = null;
+        }
+    }
+
+    /**
+     * Adds a link to a folder's index.html, creating the page if needed. Plain pages are
+     * appended to; with compression enabled the page is rewritten in compressed form.
+     */
+    private static void addIndexLink(Path indexFile, String contentHead, String link) throws IOException {
+        String content = StoredFiles.exists(indexFile)
+                ? new String(StoredFiles.read(indexFile, chunkStore), StandardCharsets.UTF_8)
+                : contentHead;
+        if (content.contains(link)) {
+            return;
+        }
+        if (!COMPRESS_ENABLED && Files.exists(indexFile)) {
+            Files.write(indexFile, link.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } else {
+            StoredFiles.write(indexFile, (content + link).getBytes(StandardCharsets.UTF_8), COMPRESS_ENABLED);
+        }
+    }
+
     /**
      * Checks if input is a valid SHA-256 hash, returns the input if valid or computes the hash if not
      */
@@ -131,7 +296,7 @@ public class FileUploadServer {
         
         // Check if the file exists
         File indexFile = new File(UPLOAD_DIR_BASE + File.separator + hash + File.separator + "index.html");
-        if (indexFile.exists()) {
+        if (StoredFiles.exists(indexFile.toPath())) {
             // Redirect to the page
             exchange.getResponseHeaders().set("Location", UPLOAD_DIR_BASE + "/" + hash + "/index.html");
             exchange.sendResponseHeaders(302, -1);
@@ -139,6 +304,27 @@ public class FileUploadServer {
             return;
         }
         
+        // Input may be the first characters of a stored hash
+        if (HASH_PREFIX_REGEX.matcher(searchInput).matches()) {
+            List<String> matches = hashIndex.findByPrefix(searchInput, PREFIX_MATCH_LIMIT);
+            if (matches.size() == 1) {
+                exchange.getResponseHeaders().set("Location", UPLOAD_DIR_BASE + "/" + matches.get(0) + "/index.html");
+                exchange.sendResponseHeaders(302, -1);
+                exchange.close();
+                return;
+            }
+            if (!matches.isEmpty()) {
+                StringBuilder response = new StringBuilder();
+                response.append("<p>Hashes starting with ").append(htmlEscape(searchInput)).append(":</p>");
+                for (String match : matches) {
+                    response.append("<a href=\"").append(UPLOAD_DIR_BASE).append("/").append(match).append("/index.html\">")
+                            .append(match).append("</a><br>");
+                }
+                sendResponse(exchange, 200, response.toString());
+                return;
+            }
+        }
+        
         // File doesn't exist
         sendResponse(exchange, 200, "File don't exists!");
     }
@@ -311,21 +497,29 @@ public class FileUploadServer {
                 // Create directories if they don't exist
                 new File(fileUploadDir).mkdirs();
                 new File(categoryDir).mkdirs();
+                registerHash(fileHash);
+                registerHash(categoryHash);
                 
                 // Save the content (either uploaded file or text content)
                 String destinationFilePath = fileUploadDir + File.separator + fileNameWithExtension;
                 
                 File destinationFile = new File(destinationFilePath);
-                if (destinationFile.exists()) {
+                if (StoredFiles.exists(destinationFile.toPath())) {
                     sendResponse(exchange, 400, "Error: File already exists!");
                     return;
                 }
                 
                 boolean saveSuccess = false;
                 try {
-                    // Save the content
-                    try (FileOutputStream fos = new FileOutputStream(destinationFilePath)) {
-                        fos.write(fileContent);
+                    // Save the content; large files go to the chunk store as a recipe when enabled
+                    if (CHUNK_STORE_ENABLED && fileContent.length >= CHUNK_STORE_THRESHOLD) {
+                        chunkStore.store(new ByteArrayInputStream(fileContent), StoredFiles.recipe(destinationFile.toPath()));
+                    } else if (COMPRESS_ENABLED) {
+                        StoredFiles.write(destinationFile.toPath(), fileContent, true);
+                    } else {
+                        try (FileOutputStream fos = new FileOutputStream(destinationFilePath)) {
+                            fos.write(fileContent);
+                        }
                     }
                     saveSuccess = true;
                 } catch (IOException e) {
@@ -337,6 +531,11 @@ public class FileUploadServer {
                     return;
                 }
                 
+                // Queue text objects for full-text indexing off the request thread
+                if ("txt".equalsIgnoreCase(fileExtension)) {
+                    textIndex.add(fileHash, new String(fileContent, StandardCharsets.UTF_8));
+                }
+                
                 // Create empty file in category folder with hash + extension name
                 String categoryFilePath = categoryDir + File.separator + fileNameWithExtension;
                 try {
@@ -350,54 +549,21 @@ public class FileUploadServer {
                 
                 // Handle index.html inside file hash folder (for content links)
                 String indexPathFileFolder = fileUploadDir + File.separator + "index.html";
-                File indexFileFolder = new File(indexPathFileFolder);
-                
-                if (!indexFileFolder.exists()) {
-                    // Create index.html if it doesn't exist
-                    try (FileWriter writer = new FileWriter(indexFileFolder)) {
-                        writer.write(contentHead);
-                    } catch (IOException e) {
-                        sendResponse(exchange, 500, "Error creating index file.");
-                        return;
-                    }
-                }
                 
                 String linkReply = "<a href=\"../../?reply=" + htmlEscape(fileHash) + "\">" + "[ Reply ]" + "</a> ";
                 String linkToHash = linkReply + "<a href=\"../" + htmlEscape(fileHash) + "/index.html\">" + "[ Open ]" + "</a> ";
                 String linkToFileFolderIndex = linkToHash + "<a href=\"" + htmlEscape(fileNameWithExtension) + "\">" + htmlEscape(originalFileName) + "</a><br>";
                 
-                // Read current index file content
-                String indexContentFileFolder = "";
+                // Add the link to the index file, creating it if it doesn't exist
                 try {
-                    indexContentFileFolder = new String(Files.readAllBytes(Paths.get(indexPathFileFolder)), StandardCharsets.UTF_8);
+                    addIndexLink(Paths.get(indexPathFileFolder), contentHead, linkToFileFolderIndex);
                 } catch (IOException e) {
-                    sendResponse(exchange, 500, "Error reading index file.");
+                    sendResponse(exchange, 500, "Error writing to index file.");
                     return;
                 }
                 
-                if (!indexContentFileFolder.contains(linkToFileFolderIndex)) {
-                    // Append the new link to the index file
-                    try (FileWriter writer = new FileWriter(indexFileFolder, true)) {
-                        writer.write(linkToFileFolderIndex);
-                    } catch (IOException e) {
-                        sendResponse(exchange, 500, "Error writing to index file.");
-                        return;
-                    }
-                }
-                
                 // Handle index.html inside category folder (for link to original content)
                 String indexPathCategoryFolder = categoryDir + File.separator + "index.html";
-                File indexCategoryFolder = new File(indexPathCategoryFolder);
-                
-                if (!indexCategoryFolder.exists()) {
-                    // Create index.html if it doesn't exist
-                    try (FileWriter writer = new FileWriter(indexCategoryFolder)) {
-                        writer.write(contentHead);
-                    } catch (IOException e) {
-                        sendResponse(exchange, 500, "Error creating category index file.");
-                        return;
-                    }
-                }
                 
                 // Construct relative path to the content in the content hash folder
                 String relativePathToFile = "../" + fileHash + "/" + fileNameWithExtension;
@@ -406,25 +572,14 @@ public class FileUploadServer {
                 String linkToHashCategory = categoryReply + "<a href=\"../" + htmlEscape(fileHash) + "/index.html\">" + "[ Open ]" + "</a> ";
                 String linkToCategoryFolderIndex = linkToHashCategory + "<a href=\"" + htmlEscape(relativePathToFile) + "\">" + htmlEscape(originalFileName) + "</a><br>";
                 
-                // Read current category index file content
-                String indexContentCategoryFolder = "";
+                // Add the link to the category index file, creating it if it doesn't exist
                 try {
-                    indexContentCategoryFolder = new String(Files.readAllBytes(Paths.get(indexPathCategoryFolder)), StandardCharsets.UTF_8);
+                    addIndexLink(Paths.get(indexPathCategoryFolder), contentHead, linkToCategoryFolderIndex);
                 } catch (IOException e) {
-                    sendResponse(exchange, 500, "Error reading category index file.");
+                    sendResponse(exchange, 500, "Error writing to category index file.");
                     return;
                 }
                 
-                if (!indexContentCategoryFolder.contains(linkToCategoryFolderIndex)) {
-                    // Append the new link to the category index file
-                    try (FileWriter writer = new FileWriter(indexCategoryFolder, true)) {
-                        writer.write(linkToCategoryFolderIndex);
-                    } catch (IOException e) {
-                        sendResponse(exchange, 500, "Error writing to category index file.");
-                        return;
-                    }
-                }
-                
                 // Render success message and form
                 StringBuilder response = new StringBuilder();
                 response.append("<p class='success'>Content processed successfully!</p>");
@@ -652,6 +807,300 @@ public class FileUploadServer {
         }
     }
     
+    /**
+     * Handler for full-text search; returns matching content hashes, one per line, best first
+     */
+    static class SearchHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQueryParams(exchange.getRequestURI().getRawQuery());
+            String q = params.get("q");
+            if (q == null || q.trim().isEmpty()) {
+                sendResponse(exchange, 400, "Missing q parameter");
+                return;
+            }
+            
+            int limit = SEARCH_LIMIT;
+            try {
+                if (params.containsKey("limit")) {
+                    limit = Math.max(1, Math.min(1000, Integer.parseInt(params.get("limit"))));
+                }
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid limit parameter");
+                return;
+            }
+            
+            StringBuilder response = new StringBuilder();
+            for (String hash : textIndex.search(java.net.URLDecoder.decode(q, StandardCharsets.UTF_8.name()), limit)) {
+                response.append(hash).append('\n');
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            sendResponse(exchange, 200, response.toString());
+        }
+    }
+    
+    /**
+     * Handler for bulk availability checks.
+     * Accepts raw 32-byte hashes (application/octet-stream) or hex hashes separated by
+     * whitespace or commas, and answers with a bitmap where bit i (LSB first) is set when
+     * the i-th hash has a directory under data/.
+     */
+    static class HaveHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendResponse(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            boolean binary = contentType != null && contentType.startsWith("application/octet-stream");
+            long maxBody = (long) MAX_HAVE_HASHES * (binary ? 32 : 65);
+            
+            byte[] body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = is.readNBytes((int) maxBody + 1);
+            }
+            if (body.length > maxBody) {
+                sendResponse(exchange, 413, "Too many hashes, at most " + MAX_HAVE_HASHES + " per request");
+                return;
+            }
+            
+            List<String> hashes = new ArrayList<>();
+            if (binary) {
+                if (body.length % 32 != 0) {
+                    sendResponse(exchange, 400, "Body length must be a multiple of 32 bytes");
+                    return;
+                }
+                byte[] raw = new byte[32];
+                for (int i = 0; i < body.length; i += 32) {
+                    System.arraycopy(body, i, raw, 0, 32);
+                    hashes.add(HashIndex.bytesToHex(raw));
+                }
+            } else {
+                for (String token : new String(body, StandardCharsets.US_ASCII).split("[\\s,]+")) {
+                    if (!token.isEmpty()) {
+                        hashes.add(token.toLowerCase());
+                    }
+                }
+            }
+            
+            byte[] bitmap = new byte[(hashes.size() + 7) / 8];
+            for (int i = 0; i < hashes.size(); i++) {
+                String hash = hashes.get(i);
+                if (SHA256_REGEX.matcher(hash).matches() && hashIndex.contains(hash)) {
+                    bitmap[i >> 3] |= 1 << (i & 7);
+                }
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, bitmap.length == 0 ? -1 : bitmap.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bitmap);
+            }
+        }
+    }
+    
+    /**
+     * Handler for the manifest change feed.
+     * GET /manifest?since=<cursor>&limit=N returns the hashes logged after the cursor, either as
+     * NDJSON ({"seq":n,"hash":"..."} per line, the default) or, with format=bin, as raw 32-byte
+     * hashes. X-Next-Cursor carries the cursor for the next call and X-Manifest-Head the newest
+     * sequence number.
+     */
+    static class ManifestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Map<String, String> params = parseQueryParams(exchange.getRequestURI().getQuery());
+            long since;
+            int limit;
+            try {
+                since = Long.parseLong(params.getOrDefault("since", "0"));
+                limit = Integer.parseInt(params.getOrDefault("limit", String.valueOf(MANIFEST_PAGE)));
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "Invalid since or limit parameter");
+                return;
+            }
+            if (since < 0 || limit < 1) {
+                sendResponse(exchange, 400, "Invalid since or limit parameter");
+                return;
+            }
+            limit = Math.min(limit, MAX_MANIFEST_PAGE);
+            
+            List<String> hashes = manifest.read(since, limit);
+            exchange.getResponseHeaders().set("X-Next-Cursor", String.valueOf(since + hashes.size()));
+            exchange.getResponseHeaders().set("X-Manifest-Head", String.valueOf(manifest.head()));
+            
+            byte[] body;
+            if ("bin".equals(params.get("format"))) {
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                body = new byte[hashes.size() * Manifest.RECORD_SIZE];
+                for (int i = 0; i < hashes.size(); i++) {
+                    System.arraycopy(HashIndex.hexToBytes(hashes.get(i)), 0, body, i * Manifest.RECORD_SIZE, Manifest.RECORD_SIZE);
+                }
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                StringBuilder lines = new StringBuilder();
+                for (int i = 0; i < hashes.size(); i++) {
+                    lines.append("{\"seq\":").append(since + i + 1).append(",\"hash\":\"").append(hashes.get(i)).append("\"}\n");
+                }
+                body = lines.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * Handler for Merkle summaries of the stored hashes.
+     * GET /merkle?prefix=<p> with fewer than three hex characters returns one line per child
+     * prefix: "<child> <count> <digest>". A three-character prefix is a leaf and returns its
+     * hashes as raw 32-byte values.
+     */
+    static class MerkleHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String prefix = parseQueryParams(exchange.getRequestURI().getQuery()).getOrDefault("prefix", "");
+            if (!MERKLE_PREFIX_REGEX.matcher(prefix).matches()) {
+                sendResponse(exchange, 400, "Invalid prefix parameter");
+                return;
+            }
+            
+            byte[] body;
+            if (prefix.length() == HashIndex.MERKLE_LEAF_DEPTH) {
+                List<String> hashes = hashIndex.findByPrefix(prefix, Integer.MAX_VALUE);
+                body = new byte[hashes.size() * 32];
+                for (int i = 0; i < hashes.size(); i++) {
+                    System.arraycopy(HashIndex.hexToBytes(hashes.get(i)), 0, body, i * 32, 32);
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            } else {
+                StringBuilder lines = new StringBuilder();
+                for (int child = 0; child < 16; child++) {
+                    String childPrefix = prefix + Integer.toHexString(child);
+                    lines.append(childPrefix).append(' ').append(hashIndex.count(childPrefix)).append(' ')
+                         .append(HashIndex.bytesToHex(hashIndex.digest(childPrefix))).append('\n');
+                }
+                body = lines.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain");
+            }
+            
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * Handler for the Bloom filter of stored hashes, in BloomFilter's serialized form
+     */
+    static class BloomHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] body;
+            synchronized (BLOOM_LOCK) {
+                if (bloomBytes == null) {
+                    bloomBytes = bloomFilter.toBytes();
+                }
+                body = bloomBytes;
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=" + TimeUnit.MINUTES.toSeconds(BLOOM_REBUILD_MINUTES));
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+    
+    /**
+     * Handler for serving raw chunks at /chunks/<chunk hash>
+     */
+    static class ChunkHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String chunkHash = exchange.getRequestURI().getPath().substring("/chunks/".length());
+            if (!ChunkStore.CHUNK_NAME.matcher(chunkHash).matches() || !chunkStore.hasChunk(chunkHash)) {
+                sendResponse(exchange, 404, "Chunk not found");
+                return;
+            }
+            
+            Path chunkPath = chunkStore.chunkPath(chunkHash);
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, Files.size(chunkPath));
+            try (OutputStream os = exchange.getResponseBody()) {
+                Files.copy(chunkPath, os);
+            }
+        }
+    }
+    
+    /**
+     * Handler for erasure-coded shards at /shards/<hash>/<index>.
+     * PUT stores a shard whose checksum holds, but does not replace an intact shard with
+     * different bytes; GET returns it.
+     */
+    static class ShardHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Matcher matcher = SHARD_PATH_REGEX.matcher(exchange.getRequestURI().getPath());
+            if (!matcher.matches()) {
+                sendResponse(exchange, 404, "Shard not found");
+                return;
+            }
+            Path shardPath = Paths.get(SHARDS_DIR_BASE, matcher.group(1), matcher.group(2));
+            
+            if ("PUT".equals(exchange.getRequestMethod())) {
+                byte[] body;
+                try (InputStream is = exchange.getRequestBody()) {
+                    body = is.readNBytes(MAX_SHARD_SIZE + 1);
+                }
+                if (body.length > MAX_SHARD_SIZE) {
+                    sendResponse(exchange, 413, "Shard larger than " + MAX_SHARD_SIZE + " bytes");
+                    return;
+                }
+                int index = Integer.parseInt(matcher.group(2));
+                if (!ErasureStore.isIntact(body, index)) {
+                    sendResponse(exchange, 400, "Not a valid shard " + index);
+                    return;
+                }
+                // A stored shard is only replaced when it is damaged
+                if (Files.isRegularFile(shardPath)) {
+                    byte[] existing = Files.readAllBytes(shardPath);
+                    if (Arrays.equals(existing, body)) {
+                        sendResponse(exchange, 200, "OK");
+                        return;
+                    }
+                    if (ErasureStore.isIntact(existing, index)) {
+                        sendResponse(exchange, 409, "A different shard is already stored");
+                        return;
+                    }
+                }
+                Files.createDirectories(shardPath.getParent());
+                Path tmp = Files.createTempFile(shardPath.getParent(), matcher.group(2), ".part");
+                Files.write(tmp, body);
+                Files.move(tmp, shardPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                sendResponse(exchange, 200, "OK");
+                return;
+            }
+            
+            if (!Files.isRegularFile(shardPath)) {
+                sendResponse(exchange, 404, "Shard not found");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, Files.size(shardPath));
+            try (OutputStream os = exchange.getResponseBody()) {
+                Files.copy(shardPath, os);
+            }
+        }
+    }
+    
     /**
      * Handler for serving static files from the data_tmp directory
      */
@@ -663,24 +1112,168 @@ public class FileUploadServer {
             // Convert URL path to file system path
             String filePath = "." + requestPath;
             File file = new File(filePath);
+            File recipeFile = new File(filePath + ChunkStore.RECIPE_SUFFIX);
+            File deflatedFile = new File(filePath + StoredFiles.DEFLATE_SUFFIX);
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
             
-            if (!file.exists() || file.isDirectory()) {
+            // Merkle sidecars are generated the first time they are asked for
+            if (!file.exists() && requestPath.endsWith(MerkleTree.TREE_SUFFIX) && !buildTree(file)) {
                 sendResponse(exchange, 404, "File not found");
                 return;
             }
             
             // Set content type based on file extension
-            String contentType = getContentType(filePath);
-            exchange.getResponseHeaders().set("Content-Type", contentType);
+            exchange.getResponseHeaders().set("Content-Type", getContentType(filePath));
             
-            // Send the file
-            byte[] fileData = Files.readAllBytes(Paths.get(filePath));
-            exchange.sendResponseHeaders(200, fileData.length);
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(fileData);
+            long length;
+            if (file.isFile()) {
+                length = file.length();
+            } else if (!file.exists() && deflatedFile.isFile()) {
+                exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                if (acceptsDeflate(exchange) && exchange.getRequestHeaders().getFirst("Range") == null) {
+                    // Stored compressed and the client accepts deflate: send the zlib stream as it is
+                    exchange.getResponseHeaders().set("Content-Encoding", "deflate");
+                    sendStream(exchange, head, 200, StoredFiles.deflatedSize(file.toPath()), () -> StoredFiles.openDeflated(file.toPath()));
+                    return;
+                }
+                length = StoredFiles.size(file.toPath()); // Inflated on the fly, ranges by skipping
+            } else if (!file.exists() && recipeFile.isFile()) {
+                length = ChunkStore.size(recipeFile.toPath()); // Stored as chunks: reassembled on the fly
+            } else {
+                sendResponse(exchange, 404, "File not found");
+                return;
+            }
+            
+            // Honour a single byte range so clients can fetch parts of an object from different servers
+            exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+            long[] range = parseRange(exchange.getRequestHeaders().getFirst("Range"), length);
+            if (range == null) {
+                sendStream(exchange, head, 200, length, () -> StoredFiles.open(file.toPath(), chunkStore));
+                return;
+            }
+            if (range[0] >= length || range[0] > range[1]) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+                sendResponse(exchange, 416, "Range Not Satisfiable");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            sendStream(exchange, head, 206, range[1] - range[0] + 1, () -> {
+                InputStream in = StoredFiles.open(file.toPath(), chunkStore);
+                in.skipNBytes(range[0]);
+                return in;
+            });
+        }
+        
+        /**
+         * Sends a response body of the given length (-1 if unknown) read from a stream opened
+         * only after the headers are out; a HEAD request gets the headers alone
+         */
+        private void sendStream(HttpExchange exchange, boolean head, int status, long length, StreamOpener opener) throws IOException {
+            if (head) {
+                if (length >= 0) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                }
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+                return;
+            }
+            
+            exchange.sendResponseHeaders(status, length < 0 ? 0 : length == 0 ? -1 : length);
+            try (InputStream in = opener.open();
+                 OutputStream os = exchange.getResponseBody()) {
+                byte[] buffer = new byte[65536];
+                long remaining = length < 0 ? Long.MAX_VALUE : length;
+                int bytesRead;
+                while (remaining > 0 && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                    os.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
             }
         }
         
+        /**
+         * Parses a Range header into inclusive {first, last} byte positions, clamped to the
+         * object. Returns null when there is no usable single range and the whole object should be sent.
+         */
+        private long[] parseRange(String header, long length) {
+            if (header == null) {
+                return null;
+            }
+            Matcher matcher = RANGE_REGEX.matcher(header.trim());
+            if (!matcher.matches() || (matcher.group(1).isEmpty() && matcher.group(2).isEmpty())) {
+                return null; // Malformed or multiple ranges
+            }
+            if (matcher.group(1).isEmpty()) {
+                // Suffix range: the last n bytes
+                return new long[] {Math.max(0, length - Long.parseLong(matcher.group(2))), length - 1};
+            }
+            long first = Long.parseLong(matcher.group(1));
+            long last = matcher.group(2).isEmpty() ? length - 1 : Math.min(length - 1, Long.parseLong(matcher.group(2)));
+            return new long[] {first, last};
+        }
+        
+        /**
+         * Writes the Merkle tree sidecar data/<hash>/<hash>.tree for the object stored in that
+         * folder. Returns false if the folder holds no object named by its hash.
+         */
+        private boolean buildTree(File treeFile) throws IOException {
+            File dir = treeFile.getParentFile();
+            String hash = treeFile.getName().substring(0, treeFile.getName().length() - MerkleTree.TREE_SUFFIX.length());
+            if (dir == null || !SHA256_REGEX.matcher(hash).matches() || !hash.equals(dir.getName())) {
+                return false;
+            }
+            
+            String[] names = dir.list();
+            if (names == null) {
+                return false;
+            }
+            for (String name : names) {
+                if (!name.startsWith(hash + ".") || name.endsWith(MerkleTree.TREE_SUFFIX) || name.endsWith(".part")) {
+                    continue;
+                }
+                // Any stored form of the object will do: plain files are hashed in parallel
+                String objectName = name;
+                if (objectName.endsWith(StoredFiles.DEFLATE_SUFFIX)) {
+                    objectName = objectName.substring(0, objectName.length() - StoredFiles.DEFLATE_SUFFIX.length());
+                } else if (objectName.endsWith(ChunkStore.RECIPE_SUFFIX)) {
+                    objectName = objectName.substring(0, objectName.length() - ChunkStore.RECIPE_SUFFIX.length());
+                }
+                Path object = dir.toPath().resolve(objectName);
+                MerkleTree tree;
+                if (Files.isRegularFile(object)) {
+                    tree = MerkleTree.build(object);
+                } else {
+                    try (InputStream in = StoredFiles.open(object, chunkStore)) {
+                        tree = MerkleTree.build(in);
+                    }
+                }
+                Path tmp = Files.createTempFile(dir.toPath(), hash, ".part");
+                Files.write(tmp, tree.toBytes());
+                Files.move(tmp, treeFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Checks whether the Accept-Encoding header allows a deflate response
+         */
+        private boolean acceptsDeflate(HttpExchange exchange) {
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : acceptEncoding.split(",")) {
+                String[] parts = coding.trim().split(";");
+                String name = parts[0].trim().toLowerCase();
+                boolean refused = parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?");
+                if (("deflate".equals(name) || "*".equals(name)) && !refused) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
         /**
          * Determine content type based on file extension
          */
@@ -699,6 +1292,13 @@ public class FileUploadServer {
         }
     }
     
+    /**
+     * Opens the body of a response once its headers have been sent
+     */
+    interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+    
     /**
      * Class to hold multipart form data
      */
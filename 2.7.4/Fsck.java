@@ -0,0 +1,352 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that every object under data/ still hashes to its name.
+ *
+ *   java Fsck [--repair] [--all]
+ *
+ * Objects are re-hashed in parallel, decenhash.fsck.concurrency at a time so the disk is not
+ * flooded with seeks; plain files are read through large direct buffers, deflated files and
+ * chunk store recipes through StoredFiles. Merkle tree sidecars, partial downloads and the
+ * hash folder's index.html are not objects and are skipped. With --repair a corrupt or
+ * unreadable object is fetched again from the servers in servers.txt, checked, and stored as
+ * a plain file in place of the bad copy.
+ *
+ * When each object was last found good is kept in fsck.txt (decenhash.fsck.state) along with
+ * its size and modification time, and an unchanged object is not checked again until
+ * decenhash.fsck.maxAgeDays have passed, unless --all is given. Line format:
+ *
+ *   <verified ms> <size> <modified ms> <path>
+ */
+public class Fsck {
+    private static final Pattern OBJECT_NAME = Pattern.compile("^([a-f0-9]{64})\\.[A-Za-z0-9]{1,16}$");
+    private static final int CONCURRENCY = Integer.getInteger("decenhash.fsck.concurrency", 4);
+    private static final int BUFFER_SIZE = Integer.getInteger("decenhash.fsck.bufferBytes", 1024 * 1024);
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(Long.getLong("decenhash.fsck.maxAgeDays", 30));
+    private static final long MAX_FILE_SIZE = Long.getLong("decenhash.download.maxBytes", 8L * 1024 * 1024 * 1024); // Larger bodies are abandoned
+    private static final Path STATE_FILE = Paths.get(System.getProperty("decenhash.fsck.state", "fsck.txt"));
+    private static final long SAVE_INTERVAL_SECONDS = 60;
+
+    private static final Path dataDir = Paths.get("data");
+    private static final ChunkStore chunkStore = new ChunkStore(Paths.get("chunks"));
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private static final Map<String, Verified> state = new ConcurrentHashMap<>();
+    private static final AtomicInteger checked = new AtomicInteger();
+    private static final AtomicInteger repaired = new AtomicInteger();
+    private static final AtomicLong bytes = new AtomicLong();
+    private static final Queue<String> bad = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) {
+        boolean repair = false;
+        boolean all = false;
+        for (String arg : args) {
+            if (arg.equals("--repair")) {
+                repair = true;
+            } else if (arg.equals("--all")) {
+                all = true;
+            } else {
+                System.err.println("Usage: java Fsck [--repair] [--all]");
+                return;
+            }
+        }
+        if (!Files.isDirectory(dataDir)) {
+            System.err.println("No data directory here");
+            return;
+        }
+
+        List<String> servers = new ArrayList<>();
+        if (repair) {
+            try {
+                servers = Scoreboard.order(Files.readAllLines(Paths.get("servers.txt")));
+            } catch (IOException e) {
+                System.err.println("Error reading servers.txt, nothing can be repaired: " + e.getMessage());
+            }
+        }
+
+        // Find the objects, keeping what is known about the ones still there
+        Map<String, Verified> previous = load();
+        List<Path> stored = new ArrayList<>();
+        try {
+            stored = objects();
+        } catch (IOException e) {
+            System.err.println("Error listing " + dataDir + ": " + e.getMessage());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<Path> due = new ArrayList<>();
+        for (Path file : stored) {
+            String key = key(file);
+            Verified verified = previous.get(key);
+            if (verified != null) {
+                state.put(key, verified);
+            }
+            if (all || verified == null || !verified.current(file, now)) {
+                due.add(file);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(CONCURRENCY, r -> {
+            Thread thread = new Thread(r, "fsck");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<String> repairFrom = servers;
+        boolean repairing = repair;
+        for (Path file : due) {
+            pool.submit(() -> check(file, repairing, repairFrom));
+        }
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS)) {
+                save();
+                System.out.printf("Progress: %d/%d checked, %.1f MB%n", checked.get(), due.size(), bytes.get() / 1e6);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        save();
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.printf("Checked %d of %d object(s) (%d verified recently) in %.1f s, %.1f MB at %.1f MB/s%n",
+                checked.get(), stored.size(), stored.size() - due.size(), seconds, bytes.get() / 1e6,
+                bytes.get() / 1e6 / Math.max(seconds, 0.001));
+        if (!bad.isEmpty()) {
+            System.out.println("Bad object(s) (" + bad.size() + "), " + repaired.get() + " repaired:");
+            for (String line : bad) {
+                System.out.println("  " + line);
+            }
+        }
+        System.out.println("Processing complete.");
+    }
+
+    /**
+     * Re-hashes one object, records it if it is good and otherwise reports and optionally repairs it
+     */
+    private static void check(Path file, boolean repair, List<String> servers) {
+        String name = objectName(file);
+        String hash = name.substring(0, name.indexOf('.'));
+        String problem;
+        try {
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            long size = Files.size(file);
+            if (hash.equals(hash(file))) {
+                state.put(key(file), new Verified(System.currentTimeMillis(), size, modified));
+                return;
+            }
+            problem = "hash mismatch";
+        } catch (IOException | UncheckedIOException e) {
+            problem = "unreadable: " + e.getMessage();
+        } finally {
+            checked.incrementAndGet();
+        }
+        state.remove(key(file));
+
+        String line = file + ": " + problem;
+        if (repair) {
+            String source = refetch(file.resolveSibling(name), hash, servers);
+            line += source != null ? ", fetched again from " + source : ", no server has a good copy";
+            if (source != null) {
+                repaired.incrementAndGet();
+            }
+        }
+        bad.add(line);
+    }
+
+    /**
+     * SHA-256 of the uncompressed content of a stored object
+     */
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest = newSha256();
+        ByteBuffer buffer = buffers.get();
+        String fileName = file.getFileName().toString();
+        if (!fileName.endsWith(StoredFiles.DEFLATE_SUFFIX) && !fileName.endsWith(ChunkStore.RECIPE_SUFFIX)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                buffer.clear();
+                int n;
+                while ((n = channel.read(buffer)) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                    bytes.addAndGet(n);
+                }
+            }
+        } else {
+            try (InputStream in = StoredFiles.open(file.resolveSibling(objectName(file)), chunkStore)) {
+                byte[] chunk = new byte[65536];
+                int n;
+                while ((n = in.read(chunk)) != -1) {
+                    digest.update(chunk, 0, n);
+                    bytes.addAndGet(n);
+                }
+            }
+        }
+        return HashIndex.bytesToHex(digest.digest());
+    }
+
+    /**
+     * Downloads the object into a temporary file, and if it hashes to its name replaces every
+     * stored form of it with the plain file. Returns the server it came from, or null.
+     */
+    private static String refetch(Path target, String hash, List<String> servers) {
+        Path tmp = target.resolveSibling(target.getFileName() + ".part");
+        for (String server : servers) {
+            String url = server.trim().replaceAll("/+$", "") + "/data/" + hash + "/" + target.getFileName();
+            try {
+                String actual;
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 65536)) {
+                    actual = PeerClient.fetchDigest(url, out, MAX_FILE_SIZE);
+                }
+                if (hash.equals(actual)) {
+                    Files.deleteIfExists(StoredFiles.deflated(target));
+                    Files.deleteIfExists(StoredFiles.recipe(target));
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    state.put(key(target), new Verified(System.currentTimeMillis(), Files.size(target),
+                            Files.getLastModifiedTime(target).toMillis()));
+                    return server;
+                }
+            } catch (IOException e) {
+                // Try the next server
+            }
+        }
+        try {
+            Files.deleteIfExists(tmp);
+        } catch (IOException e) {
+            System.err.println("Could not remove " + tmp + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stored objects: files in data/<hash>/ named <hash>.<ext>, possibly with .deflate or .recipe
+     */
+    private static List<Path> objects() throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> hashDirs = Files.newDirectoryStream(dataDir, Files::isDirectory)) {
+            for (Path hashDir : hashDirs) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(hashDir)) {
+                    for (Path file : files) {
+                        if (file.getFileName().toString().endsWith(MerkleTree.TREE_SUFFIX)) {
+                            continue; // Merkle tree sidecar, whose name also looks like an object's
+                        }
+                        Matcher matcher = OBJECT_NAME.matcher(objectName(file));
+                        if (matcher.matches() && matcher.group(1).equals(hashDir.getFileName().toString())
+                                && Files.isRegularFile(file)) {
+                            result.add(file);
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(result); // Neighbouring files are checked together
+        return result;
+    }
+
+    /**
+     * The object's name without the suffix of the form it is stored in
+     */
+    private static String objectName(Path file) {
+        String name = file.getFileName().toString();
+        for (String suffix : new String[]{StoredFiles.DEFLATE_SUFFIX, ChunkStore.RECIPE_SUFFIX}) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+    }
+
+    private static String key(Path file) {
+        return file.toString().replace(File.separatorChar, '/');
+    }
+
+    private static Map<String, Verified> load() {
+        Map<String, Verified> result = new HashMap<>();
+        if (!Files.exists(STATE_FILE)) {
+            return result;
+        }
+        try {
+            for (String line : Files.readAllLines(STATE_FILE, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 4);
+                if (fields.length != 4) {
+                    continue;
+                }
+                try {
+                    result.put(fields[3], new Verified(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                } catch (NumberFormatException e) {
+                    // Skip damaged lines
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + STATE_FILE + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Writes the verification times of the objects seen in this run and replaces the file atomically
+     */
+    private static synchronized void save() {
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Verified> entry : new TreeMap<>(state).entrySet()) {
+            Verified v = entry.getValue();
+            content.append(v.at).append(' ').append(v.size).append(' ').append(v.modified).append(' ')
+                    .append(entry.getKey()).append('\n');
+        }
+        try {
+            Path dir = STATE_FILE.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(dir, "fsck", ".part");
+            Files.write(tmp, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, STATE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not save " + STATE_FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    /**
+     * When an object was last found good, and its size and modification time then
+     */
+    private static class Verified {
+        final long at;
+        final long size;
+        final long modified;
+
+        Verified(long at, long size, long modified) {
+            this.at = at;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * True if the object has not changed since and was checked less than MAX_AGE_MILLIS ago
+         */
+        boolean current(Path file, long now) {
+            try {
+                return now - at < MAX_AGE_MILLIS && Files.size(file) == size
+                        && Files.getLastModifiedTime(file).toMillis() == modified;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
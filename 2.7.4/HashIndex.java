@@ -0,0 +1,403 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Sorted index of every hash directory under data/.
+ *
+ * The bulk of the hashes live in a file of sorted 32-byte raw hashes that is memory-mapped
+ * and searched with a binary search. Hashes added since the last rebuild are kept in a
+ * small in-memory sorted set and folded into the file in the background once enough of
+ * them accumulate. Each rebuild writes the next generation of the file (hashes-<n>.idx for
+ * hashes.idx), maps it and only then deletes the previous one, since a mapped file cannot be
+ * replaced or deleted on every system; a generation left behind is removed on the next start.
+ *
+ * For anti-entropy between nodes the hash space is also summarized as a Merkle tree keyed
+ * by hex prefix: leaves are the 4096 three-character prefixes, a leaf digest is the SHA-256
+ * of its sorted raw hashes, and an inner digest is the SHA-256 of its 16 child digests.
+ * Leaf digests are cached and recomputed only after a hash lands in them.
+ */
+public class HashIndex {
+    private static final Pattern SHA256_REGEX = Pattern.compile("^[a-f0-9]{64}$");
+    private static final int ENTRY_SIZE = 32;
+    private static final int ENTRIES_PER_MAP_SHIFT = 25; // 2^25 entries * 32 bytes = 1 GB per mapping
+    private static final int REBUILD_THRESHOLD = 65536; // Pending hashes before the file is rewritten
+    static final int MERKLE_LEAF_DEPTH = 3; // Hex characters in a leaf prefix
+
+    private final Path indexFile; // Name the generations are derived from; never written itself
+    private long generation; // Of the mapped file, 0 for one written before generations existed
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "hash-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile Snapshot base;
+    private final ConcurrentSkipListSet<String> pending = new ConcurrentSkipListSet<>();
+    private boolean rebuildQueued = false;
+
+    // Cached Merkle leaves by prefix value; a null digest marks a leaf that changed, guarded by leafDigests
+    private final byte[][] leafDigests = new byte[1 << (4 * MERKLE_LEAF_DEPTH)][];
+    private final int[] leafCounts = new int[1 << (4 * MERKLE_LEAF_DEPTH)];
+
+    public HashIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        Files.createDirectories(indexFile.getParent());
+
+        // Map the newest generation and remove older ones a crash or a mapping left behind
+        List<Long> generations = new ArrayList<>();
+        String prefix = stem() + "-";
+        String suffix = extension();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexFile.getParent(), prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+        generation = generations.isEmpty() ? 0 : Collections.max(generations);
+        this.base = Snapshot.map(generationFile(generation));
+        for (long older : generations) {
+            if (older < generation) {
+                deleteGeneration(older);
+            }
+        }
+        if (generation > 0) {
+            deleteGeneration(0);
+        }
+    }
+
+    /**
+     * Adds every hash directory under dataDir that is not indexed yet and returns those hashes
+     */
+    public List<String> refresh(Path dataDir) throws IOException {
+        List<String> added = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dataDir)) {
+            for (Path dir : dirs) {
+                String name = dir.getFileName().toString();
+                if (SHA256_REGEX.matcher(name).matches() && Files.isDirectory(dir) && add(name)) {
+                    added.add(name);
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Records a stored hash and returns true if it was new; the file is rewritten later in the background
+     */
+    public boolean add(String hash) {
+        if (contains(hash) || !pending.add(hash)) {
+            return false;
+        }
+        synchronized (leafDigests) {
+            leafDigests[Integer.parseInt(hash.substring(0, MERKLE_LEAF_DEPTH), 16)] = null;
+        }
+        if (pending.size() >= REBUILD_THRESHOLD) {
+            scheduleRebuild();
+        }
+        return true;
+    }
+
+    public boolean contains(String hash) {
+        if (pending.contains(hash)) {
+            return true;
+        }
+        Snapshot snapshot = base;
+        byte[] key = hexToBytes(hash);
+        long i = snapshot.lowerBound(key, key.length * 2);
+        return i < snapshot.count && snapshot.compare(i, key, key.length * 2) == 0;
+    }
+
+    public long size() {
+        return base.count + pending.size();
+    }
+
+    /**
+     * Passes every indexed hash to the consumer, file entries first and then pending ones
+     */
+    public synchronized void forEach(Consumer<String> consumer) {
+        Snapshot snapshot = base;
+        for (long i = 0; i < snapshot.count; i++) {
+            consumer.accept(snapshot.hexAt(i));
+        }
+        for (String hash : pending) {
+            consumer.accept(hash);
+        }
+    }
+
+    /**
+     * Returns up to limit stored hashes starting with the given hex prefix, in sorted order
+     */
+    public List<String> findByPrefix(String prefix, int limit) {
+        TreeSet<String> matches = new TreeSet<>();
+
+        // Binary search the mapped file for the first entry at or after the prefix
+        Snapshot snapshot = base;
+        byte[] key = hexToBytes(prefix.length() % 2 == 0 ? prefix : prefix + "0");
+        long i = snapshot.lowerBound(key, prefix.length());
+        while (i < snapshot.count && matches.size() < limit && snapshot.compare(i, key, prefix.length()) == 0) {
+            matches.add(snapshot.hexAt(i));
+            i++;
+        }
+
+        for (String hash : pending.tailSet(prefix)) {
+            if (!hash.startsWith(prefix)) {
+                break;
+            }
+            matches.add(hash);
+        }
+
+        List<String> result = new ArrayList<>(matches);
+        return result.size() > limit ? result.subList(0, limit) : result;
+    }
+
+    /**
+     * Merkle digest of all hashes starting with prefix; prefix has at most MERKLE_LEAF_DEPTH characters
+     */
+    public byte[] digest(String prefix) {
+        if (prefix.length() == MERKLE_LEAF_DEPTH) {
+            return leaf(Integer.parseInt(prefix, 16));
+        }
+        MessageDigest sha256 = newSha256();
+        for (int child = 0; child < 16; child++) {
+            sha256.update(digest(prefix + Integer.toHexString(child)));
+        }
+        return sha256.digest();
+    }
+
+    /**
+     * Number of hashes starting with prefix; prefix has at most MERKLE_LEAF_DEPTH characters
+     */
+    public long count(String prefix) {
+        int first = prefix.isEmpty() ? 0 : Integer.parseInt(prefix, 16) << (4 * (MERKLE_LEAF_DEPTH - prefix.length()));
+        int leaves = 1 << (4 * (MERKLE_LEAF_DEPTH - prefix.length()));
+        long total = 0;
+        for (int leaf = first; leaf < first + leaves; leaf++) {
+            leaf(leaf);
+            synchronized (leafDigests) {
+                total += leafCounts[leaf];
+            }
+        }
+        return total;
+    }
+
+    private byte[] leaf(int leaf) {
+        synchronized (leafDigests) {
+            if (leafDigests[leaf] == null) {
+                String prefix = String.format("%0" + MERKLE_LEAF_DEPTH + "x", leaf);
+                List<String> hashes = findByPrefix(prefix, Integer.MAX_VALUE);
+                MessageDigest sha256 = newSha256();
+                for (String hash : hashes) {
+                    sha256.update(hexToBytes(hash));
+                }
+                leafDigests[leaf] = sha256.digest();
+                leafCounts[leaf] = hashes.size();
+            }
+            return leafDigests[leaf];
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found.", e);
+        }
+    }
+
+    /**
+     * Folds pending hashes into the index file now, on the calling thread
+     */
+    public synchronized void rebuild() throws IOException {
+        rebuildQueued = false;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        // Merge the sorted file with the sorted pending set into a new file
+        List<String> merged = new ArrayList<>(pending);
+        Snapshot snapshot = base;
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        long nextGeneration = generation + 1;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16)) {
+            long i = 0;
+            int j = 0;
+            while (i < snapshot.count || j < merged.size()) {
+                String next;
+                if (j >= merged.size()) {
+                    next = snapshot.hexAt(i++);
+                } else if (i >= snapshot.count) {
+                    next = merged.get(j++);
+                } else {
+                    String fromFile = snapshot.hexAt(i);
+                    int cmp = fromFile.compareTo(merged.get(j));
+                    if (cmp <= 0) {
+                        i++;
+                        if (cmp == 0) {
+                            j++;
+                        }
+                        next = fromFile;
+                    } else {
+                        next = merged.get(j++);
+                    }
+                }
+                out.write(hexToBytes(next));
+            }
+        }
+        Files.move(tmp, generationFile(nextGeneration), StandardCopyOption.ATOMIC_MOVE);
+
+        base = Snapshot.map(generationFile(nextGeneration));
+        pending.removeAll(merged);
+        long previous = generation;
+        generation = nextGeneration;
+        deleteGeneration(previous);
+    }
+
+    /**
+     * The file of a generation; generation 0 is indexFile itself, as written by older versions
+     */
+    private Path generationFile(long n) {
+        return n == 0 ? indexFile : indexFile.resolveSibling(stem() + "-" + n + extension());
+    }
+
+    private void deleteGeneration(long n) {
+        try {
+            Files.deleteIfExists(generationFile(n));
+        } catch (IOException e) {
+            // Still mapped by a search in flight on some systems; removed on the next start
+        }
+    }
+
+    private String stem() {
+        String name = indexFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    private String extension() {
+        String name = indexFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot);
+    }
+
+    private synchronized void scheduleRebuild() {
+        if (rebuildQueued) {
+            return;
+        }
+        rebuildQueued = true;
+        worker.submit(() -> {
+            try {
+                rebuild();
+            } catch (IOException e) {
+                System.err.println("Error rebuilding hash index: " + e.getMessage());
+            }
+        });
+    }
+
+    static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static String bytesToHex(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    /**
+     * Read-only view of the sorted index file, mapped in 1 GB slices
+     */
+    private static class Snapshot {
+        private final MappedByteBuffer[] maps;
+        private final long count;
+
+        private Snapshot(MappedByteBuffer[] maps, long count) {
+            this.maps = maps;
+            this.count = count;
+        }
+
+        static Snapshot map(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return new Snapshot(new MappedByteBuffer[0], 0);
+            }
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long count = channel.size() / ENTRY_SIZE;
+                long perMap = 1L << ENTRIES_PER_MAP_SHIFT;
+                MappedByteBuffer[] maps = new MappedByteBuffer[(int) ((count + perMap - 1) / perMap)];
+                for (int m = 0; m < maps.length; m++) {
+                    long entries = Math.min(perMap, count - m * perMap);
+                    maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, m * perMap * ENTRY_SIZE, entries * ENTRY_SIZE);
+                }
+                return new Snapshot(maps, count);
+            }
+        }
+
+        /**
+         * Compares the first nibbles hex digits of entry i with key
+         */
+        int compare(long i, byte[] key, int nibbles) {
+            MappedByteBuffer map = maps[(int) (i >>> ENTRIES_PER_MAP_SHIFT)];
+            int offset = (int) (i & ((1L << ENTRIES_PER_MAP_SHIFT) - 1)) * ENTRY_SIZE;
+            for (int n = 0; n < nibbles; n++) {
+                int entryByte = map.get(offset + n / 2) & 0xff;
+                int keyByte = key[n / 2] & 0xff;
+                int a = n % 2 == 0 ? entryByte >>> 4 : entryByte & 0x0f;
+                int b = n % 2 == 0 ? keyByte >>> 4 : keyByte & 0x0f;
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the index of the first entry whose prefix is not less than key
+         */
+        long lowerBound(byte[] key, int nibbles) {
+            long low = 0;
+            long high = count;
+            while (low < high) {
+                long mid = (low + high) >>> 1;
+                if (compare(mid, key, nibbles) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        String hexAt(long i) {
+            MappedByteBuffer map = maps[(int) (i >>> ENTRIES_PER_MAP_SHIFT)];
+            int offset = (int) (i & ((1L << ENTRIES_PER_MAP_SHIFT) - 1)) * ENTRY_SIZE;
+            byte[] entry = new byte[ENTRY_SIZE];
+            for (int b = 0; b < ENTRY_SIZE; b++) {
+                entry[b] = map.get(offset + b);
+            }
+            return bytesToHex(entry);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of stored hashes used by other nodes to sync by cursor.
+ *
+ * Every record is a raw 32-byte hash; the record at position k has sequence number k + 1,
+ * so a cursor is simply the number of records a reader has already seen. A hash can be
+ * logged twice if the server crashed before its hash index was saved, so readers must
+ * treat the log as a set.
+ */
+public class Manifest {
+    static final int RECORD_SIZE = 32;
+
+    private final FileChannel channel;
+    private long count;
+
+    public Manifest(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        // Drop a partial record left behind by a crash mid-append
+        long size = channel.size();
+        if (size % RECORD_SIZE != 0) {
+            channel.truncate(size - size % RECORD_SIZE);
+        }
+        this.count = channel.size() / RECORD_SIZE;
+    }
+
+    /**
+     * Appends a hash and returns its sequence number
+     */
+    public synchronized long append(String hash) throws IOException {
+        ByteBuffer record = ByteBuffer.wrap(HashIndex.hexToBytes(hash));
+        while (record.hasRemaining()) {
+            channel.write(record, count * RECORD_SIZE + record.position());
+        }
+        return ++count;
+    }
+
+    /**
+     * Sequence number of the newest record, 0 when the log is empty
+     */
+    public synchronized long head() {
+        return count;
+    }
+
+    /**
+     * Returns up to limit hashes with sequence numbers greater than since, oldest first
+     */
+    public List<String> read(long since, int limit) throws IOException {
+        long end = Math.min(head(), since + limit);
+        List<String> hashes = new ArrayList<>();
+        if (since < 0 || since >= end) {
+            return hashes;
+        }
+
+        ByteBuffer data = ByteBuffer.allocate((int) (end - since) * RECORD_SIZE);
+        while (data.hasRemaining()) {
+            if (channel.read(data, since * RECORD_SIZE + data.position()) < 0) {
+                break;
+            }
+        }
+        data.flip();
+        byte[] record = new byte[RECORD_SIZE];
+        while (data.remaining() >= RECORD_SIZE) {
+            data.get(record);
+            hashes.add(HashIndex.bytesToHex(record));
+        }
+        return hashes;
+    }
+
+    public synchronized void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * SHA-256 Merkle tree over the fixed-size chunks of an object.
+ *
+ * Kept as a sidecar "<hash>.tree" next to the object so a client can check every chunk as it
+ * arrives, or check ranges fetched from different servers, instead of only the whole file at
+ * the end. Leaves are SHA-256(0x00 || chunk) and inner nodes SHA-256(0x01 || left || right),
+ * with an odd node carried up unchanged. Serialized form: the magic "DHMT", int chunk size,
+ * long object size, then the leaf hashes; inner nodes are recomputed.
+ *
+ * The tree is not bound to the object's name, which is the SHA-256 of the whole content: a
+ * client that trusts a tree from one server still checks the complete file against its name.
+ */
+public class MerkleTree {
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final String TREE_SUFFIX = ".tree";
+
+    private static final int MAGIC = 0x44484d54; // "DHMT"
+    private static final int HEADER_SIZE = 16;
+
+    private final int chunkSize;
+    private final long size;
+    private final byte[][] leaves;
+
+    private MerkleTree(int chunkSize, long size, byte[][] leaves) {
+        this.chunkSize = chunkSize;
+        this.size = size;
+        this.leaves = leaves;
+    }
+
+    /**
+     * Hashes the chunks of a plain file in parallel, reading each at its own offset
+     */
+    public static MerkleTree build(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[][] leaves = new byte[chunkCount(size, CHUNK_SIZE)][];
+            try {
+                IntStream.range(0, leaves.length).parallel().forEach(i -> {
+                    long offset = (long) i * CHUNK_SIZE;
+                    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size - offset));
+                    try {
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                                throw new EOFException("File shrank while hashing: " + file);
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    leaves[i] = leafHash(buffer.array(), buffer.position());
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return new MerkleTree(CHUNK_SIZE, size, leaves);
+        }
+    }
+
+    /**
+     * Hashes a stream chunk by chunk, for objects stored compressed or as chunk recipes
+     */
+    public static MerkleTree build(InputStream in) throws IOException {
+        ByteArrayOutputStream leafBytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long size = 0;
+        int read;
+        do {
+            read = in.readNBytes(buffer, 0, CHUNK_SIZE);
+            if (read > 0 || size == 0) {
+                leafBytes.write(leafHash(buffer, read));
+                size += read;
+            }
+        } while (read == CHUNK_SIZE);
+
+        byte[] all = leafBytes.toByteArray();
+        byte[][] leaves = new byte[all.length / 32][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = Arrays.copyOfRange(all, i * 32, i * 32 + 32);
+        }
+        return new MerkleTree(CHUNK_SIZE, size, leaves);
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public int chunkCount() {
+        return leaves.length;
+    }
+
+    /**
+     * Checks one chunk of the object; length must be the chunk's full length
+     */
+    public boolean verifyChunk(int index, byte[] data, int length) {
+        long expectedLength = Math.min(chunkSize, size - (long) index * chunkSize);
+        return index >= 0 && index < leaves.length && length == Math.max(0, expectedLength)
+                && MessageDigest.isEqual(leaves[index], leafHash(data, length));
+    }
+
+    public byte[] root() {
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                if (2 * i + 1 < level.length) {
+                    MessageDigest digest = newSha256();
+                    digest.update((byte) 1);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    next[i] = digest.digest();
+                } else {
+                    next[i] = level[2 * i];
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + leaves.length * 32);
+        buffer.putInt(MAGIC).putInt(chunkSize).putLong(size);
+        for (byte[] leaf : leaves) {
+            buffer.put(leaf);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Parses a serialized tree; returns null if the bytes are not a valid tree
+     */
+    public static MerkleTree fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC) {
+            return null;
+        }
+        int chunkSize = buffer.getInt();
+        long size = buffer.getLong();
+        if (chunkSize < 1 || size < 0 || buffer.remaining() != (long) chunkCount(size, chunkSize) * 32) {
+            return null;
+        }
+        byte[][] leaves = new byte[buffer.remaining() / 32][32];
+        for (byte[] leaf : leaves) {
+            buffer.get(leaf);
+        }
+        return new MerkleTree(chunkSize, size, leaves);
+    }
+
+    private static int chunkCount(long size, int chunkSize) {
+        return (int) Math.max(1, (size + chunkSize - 1) / chunkSize); // An empty object has one empty leaf
+    }
+
+    private static byte[] leafHash(byte[] data, int length) {
+        MessageDigest digest = newSha256();
+        digest.update((byte) 0);
+        digest.update(data, 0, length);
+        return digest.digest();
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+}
@@ -0,0 +1,571 @@
+import java.io.*;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Client side of the node-to-node endpoints served by FileUploadServer.
+ *
+ * A request fails when the response headers or a read of the body take longer than
+ * decenhash.peer.readTimeoutMillis (default 5000, as Download always used), so a dead server
+ * costs little in a download loop. Raise it for slow links.
+ */
+public class PeerClient {
+    private static final Pattern SHA256_REGEX = Pattern.compile("^[a-f0-9]{64}$");
+    private static final int READ_TIMEOUT = Integer.getInteger("decenhash.peer.readTimeoutMillis", 5000);
+    static final int HAVE_BATCH = 10000; // Hashes per /have request
+    static final long UNKNOWN_SIZE = -2; // From size(): the server has the object but sent no Content-Length
+    private static final long BLOOM_TTL_MILLIS = 10 * 60 * 1000; // 10 minutes, matches the server's rebuild interval
+    private static final Path BLOOM_CACHE_DIR = Paths.get("cache", "bloom");
+
+    // Bloom filters by server; a cached entry with a null filter means the server publishes none
+    private static final Map<String, CachedBloom> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * Normalizes a server URL from servers.txt so paths can be appended to it
+     */
+    public static String baseUrl(String server) {
+        return server.trim().replaceAll("/+$", "");
+    }
+
+    /**
+     * Asks a server which of the given hashes it stores, HAVE_BATCH hashes per request.
+     * Bit i of the result is set when hashes.get(i) is present. Entries that are not valid
+     * SHA-256 hashes are never set. Returns null if the server does not offer /have or answers
+     * with anything but a bitmap of the right length, such as a host's custom error page, so the
+     * caller falls back to asking for each hash.
+     */
+    public static BitSet have(String server, List<String> hashes) {
+        BitSet present = new BitSet(hashes.size());
+        for (int start = 0; start < hashes.size(); start += HAVE_BATCH) {
+            List<String> batch = hashes.subList(start, Math.min(hashes.size(), start + HAVE_BATCH));
+
+            // Send the valid hashes as raw 32-byte values and remember where each one came from
+            int[] positions = new int[batch.size()];
+            int count = 0;
+            ByteArrayOutputStream body = new ByteArrayOutputStream(batch.size() * 32);
+            for (int i = 0; i < batch.size(); i++) {
+                String hash = batch.get(i).trim().toLowerCase();
+                if (SHA256_REGEX.matcher(hash).matches()) {
+                    body.write(hexToBytes(hash), 0, 32);
+                    positions[count++] = start + i;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            byte[] bitmap = post(baseUrl(server) + "/have", body.toByteArray());
+            if (bitmap == null || bitmap.length != (count + 7) / 8) {
+                return null;
+            }
+            for (int i = 0; i < count; i++) {
+                if ((bitmap[i >> 3] & (1 << (i & 7))) != 0) {
+                    present.set(positions[i]);
+                }
+            }
+        }
+        return present;
+    }
+
+    /**
+     * Returns false only if the server's Bloom filter rules the hash out. Servers without a
+     * filter, and hashes that are not valid SHA-256 values, always get true.
+     */
+    public static boolean mightHave(String server, String hash) {
+        hash = hash.trim().toLowerCase();
+        if (!SHA256_REGEX.matcher(hash).matches()) {
+            return true;
+        }
+        BloomFilter filter = bloom(server);
+        return filter == null || filter.mightContain(hexToBytes(hash));
+    }
+
+    /**
+     * Returns the server's Bloom filter, cached in memory and under cache/bloom for BLOOM_TTL_MILLIS.
+     * Returns null if the server publishes no filter.
+     */
+    public static BloomFilter bloom(String server) {
+        String base = baseUrl(server);
+        long now = System.currentTimeMillis();
+        CachedBloom cached = bloomFilters.get(base);
+        if (cached != null && now - cached.loadedAt < BLOOM_TTL_MILLIS) {
+            return cached.filter;
+        }
+
+        // An empty cache file records that the server has no filter
+        Path cacheFile = BLOOM_CACHE_DIR.resolve(sha256Hex(base) + ".bloom");
+        try {
+            if (Files.exists(cacheFile) && now - Files.getLastModifiedTime(cacheFile).toMillis() < BLOOM_TTL_MILLIS) {
+                BloomFilter filter = BloomFilter.fromBytes(Files.readAllBytes(cacheFile));
+                bloomFilters.put(base, new CachedBloom(filter, Files.getLastModifiedTime(cacheFile).toMillis()));
+                return filter;
+            }
+        } catch (IOException e) {
+            // Fall through and fetch a fresh copy
+        }
+
+        byte[] body = get(base + "/bloom");
+        BloomFilter filter = BloomFilter.fromBytes(body);
+        bloomFilters.put(base, new CachedBloom(filter, now));
+        try {
+            Files.createDirectories(BLOOM_CACHE_DIR);
+            Path tmp = Files.createTempFile(BLOOM_CACHE_DIR, "bloom", ".part");
+            Files.write(tmp, filter == null ? new byte[0] : body);
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache Bloom filter of " + base + ": " + e.getMessage());
+        }
+        return filter;
+    }
+
+    /**
+     * Reads one page of a server's manifest after the given cursor.
+     * Returns null if the server does not offer /manifest.
+     */
+    public static ManifestPage manifest(String server, long since, int limit) {
+        try {
+            HttpResponse<InputStream> response = open(Transport.request(
+                    baseUrl(server) + "/manifest?format=bin&since=" + since + "&limit=" + limit, READ_TIMEOUT), READ_TIMEOUT);
+            try (InputStream in = response.body()) {
+                if (response.statusCode() != 200) {
+                    return null;
+                }
+
+                ManifestPage page = new ManifestPage();
+                page.next = Long.parseLong(response.headers().firstValue("X-Next-Cursor").orElse(""));
+                page.head = Long.parseLong(response.headers().firstValue("X-Manifest-Head").orElse(""));
+                byte[] body = in.readAllBytes();
+                byte[] record = new byte[32];
+                for (int i = 0; i + 32 <= body.length; i += 32) {
+                    System.arraycopy(body, i, record, 0, 32);
+                    page.hashes.add(HashIndex.bytesToHex(record));
+                }
+                return page;
+            }
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the Merkle summaries of the 16 children of a prefix.
+     * Returns null if the server does not offer /merkle.
+     */
+    public static List<MerkleNode> merkleChildren(String server, String prefix) {
+        byte[] body = get(baseUrl(server) + "/merkle?prefix=" + prefix);
+        if (body == null) {
+            return null;
+        }
+        List<MerkleNode> children = new ArrayList<>();
+        for (String line : new String(body, StandardCharsets.UTF_8).split("\n")) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length == 3) {
+                children.add(new MerkleNode(fields[0], Long.parseLong(fields[1]), fields[2]));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Reads every hash under a Merkle leaf prefix. Returns null if the server does not offer /merkle.
+     */
+    public static List<String> merkleLeaf(String server, String prefix) {
+        byte[] body = get(baseUrl(server) + "/merkle?prefix=" + prefix);
+        if (body == null) {
+            return null;
+        }
+        List<String> hashes = new ArrayList<>();
+        byte[] record = new byte[32];
+        for (int i = 0; i + 32 <= body.length; i += 32) {
+            System.arraycopy(body, i, record, 0, 32);
+            hashes.add(HashIndex.bytesToHex(record));
+        }
+        return hashes;
+    }
+
+    /**
+     * Opens a GET request and returns the response body stream, inflated if the server sent it
+     * deflated, or null unless the status is 200 OK
+     */
+    public static InputStream openStream(String urlString) throws IOException {
+        HttpResponse<InputStream> response = open(Transport.request(urlString, READ_TIMEOUT)
+                .header("Accept-Encoding", "deflate"), READ_TIMEOUT);
+        if (response.statusCode() != 200) {
+            response.body().close();
+            return null;
+        }
+        return decoded(response);
+    }
+
+    /**
+     * Returns the size of an object from a HEAD request, -1 if the server does not have it, or
+     * UNKNOWN_SIZE if it has it but did not say how large it is
+     */
+    public static long size(String urlString) {
+        try {
+            HttpResponse<InputStream> response = open(Transport.request(urlString, READ_TIMEOUT)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()), READ_TIMEOUT);
+            response.body().close();
+            if (response.statusCode() != 200) {
+                return -1;
+            }
+            long length = Transport.contentLength(response);
+            return length < 0 ? UNKNOWN_SIZE : length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens bytes first..last (inclusive) of an object. A read that stalls for readTimeoutMillis
+     * fails. Returns null unless the server answers with exactly that range.
+     */
+    public static InputStream openRange(String urlString, long first, long last, int readTimeoutMillis) throws IOException {
+        HttpResponse<InputStream> response = open(Transport.request(urlString, readTimeoutMillis)
+                .header("Range", "bytes=" + first + "-" + last), readTimeoutMillis);
+        String contentRange = response.statusCode() == 206
+                ? response.headers().firstValue("Content-Range").orElse(null) : null;
+        if (contentRange == null || !contentRange.startsWith("bytes " + first + "-" + last + "/")) {
+            response.body().close();
+            return null;
+        }
+        return response.body();
+    }
+
+    /**
+     * Fetches the Merkle tree sidecar of an object; returns null if the server has none
+     */
+    public static MerkleTree tree(String server, String hash) {
+        return MerkleTree.fromBytes(get(baseUrl(server) + "/data/" + hash + "/" + hash + MerkleTree.TREE_SUFFIX));
+    }
+
+    /**
+     * Streams a GET response into out while computing its SHA-256, so memory use does not grow
+     * with the file. Gives up as soon as the declared or received length exceeds maxBytes.
+     * Returns the hex digest, or null if the status is not 200 OK or the body is too large.
+     */
+    public static String fetchDigest(String urlString, OutputStream out, long maxBytes) throws IOException {
+        try (Body body = openFrom(urlString, 0)) {
+            if (body == null || body.length > maxBytes) {
+                return null;
+            }
+            MessageDigest digest = newSha256();
+            return copyDigest(body.in, digest, out, maxBytes) < 0 ? null : HashIndex.bytesToHex(digest.digest());
+        }
+    }
+
+    /**
+     * Opens an object from byte offset on, asking for "Range: bytes=offset-" when offset is not 0.
+     * The body starts at offset, or at 0 if the server ignored the range. Returns null unless the
+     * object is available.
+     */
+    public static Body openFrom(String urlString, long offset) throws IOException {
+        return toBody(open(fromRequest(urlString, offset), READ_TIMEOUT), offset);
+    }
+
+    /**
+     * Opens an object like openFrom, but if the primary server has not answered within its
+     * usual latency (Scoreboard.hedgeDelay) asks the backup server too. The first to answer
+     * with the object wins and the other request is cancelled, or its body closed if it was
+     * already on the way. backupUrl may be null.
+     */
+    public static Hedged openHedged(String primaryUrl, String backupUrl, long offset) throws IOException {
+        CompletableFuture<HttpResponse<InputStream>> primary = Transport.openAsync(
+                fromRequest(primaryUrl, offset).build(), READ_TIMEOUT);
+        if (backupUrl != null) {
+            try {
+                primary.get(Scoreboard.hedgeDelay(primaryUrl), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return race(primary, primaryUrl, backupUrl, offset);
+            } catch (InterruptedException | ExecutionException e) {
+                // Reported by await below
+            }
+        }
+        HttpResponse<InputStream> response = Transport.await(primary, primaryUrl);
+        return new Hedged(toBody(response, offset), primaryUrl, false, response.statusCode());
+    }
+
+    /**
+     * Sends the backup request and waits for the first of the two to deliver the object
+     */
+    private static Hedged race(CompletableFuture<HttpResponse<InputStream>> primary, String primaryUrl,
+                               String backupUrl, long offset) throws IOException {
+        CompletableFuture<HttpResponse<InputStream>> backup = Transport.openAsync(
+                fromRequest(backupUrl, offset).build(), READ_TIMEOUT);
+        CompletableFuture<Hedged> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        AtomicInteger primaryStatus = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            String url = i == 0 ? primaryUrl : backupUrl;
+            (i == 0 ? primary : backup).whenComplete((response, error) -> {
+                Body body = null;
+                if (response != null) {
+                    if (url.equals(primaryUrl)) {
+                        primaryStatus.set(response.statusCode());
+                    }
+                    try {
+                        body = toBody(response, offset);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                if (body != null && !winner.complete(new Hedged(body, url, true, response.statusCode()))) {
+                    closeQuietly(body); // The other server was faster
+                }
+                if (pending.decrementAndGet() == 0 && body == null) {
+                    // Neither delivered the object
+                    if (error != null && !(error instanceof CancellationException)) {
+                        winner.completeExceptionally(error);
+                    } else {
+                        winner.complete(new Hedged(null, primaryUrl, true, primaryStatus.get()));
+                    }
+                }
+            });
+        }
+        try {
+            Hedged result = Transport.await(winner, primaryUrl);
+            (result.url.equals(primaryUrl) ? backup : primary).cancel(true);
+            return result;
+        } catch (IOException e) {
+            primary.cancel(true);
+            backup.cancel(true);
+            throw e;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to read from it
+        }
+    }
+
+    private static HttpRequest.Builder fromRequest(String urlString, long offset) throws IOException {
+        HttpRequest.Builder request = Transport.request(urlString, READ_TIMEOUT);
+        if (offset > 0) {
+            request.header("Range", "bytes=" + offset + "-");
+        } else {
+            request.header("Accept-Encoding", "deflate"); // Objects stored deflated are sent as they are
+        }
+        return request;
+    }
+
+    /**
+     * The response body, inflated if the server sent it with Content-Encoding: deflate
+     */
+    private static InputStream decoded(HttpResponse<InputStream> response) {
+        return isDeflated(response) ? new InflaterInputStream(response.body()) : response.body();
+    }
+
+    private static boolean isDeflated(HttpResponse<?> response) {
+        return "deflate".equalsIgnoreCase(response.headers().firstValue("Content-Encoding").orElse(""));
+    }
+
+    /**
+     * The body of a response to fromRequest, or null after closing it unless the object is available
+     */
+    private static Body toBody(HttpResponse<InputStream> response, long offset) throws IOException {
+        String contentRange = response.headers().firstValue("Content-Range").orElse(null);
+        long start;
+        if (response.statusCode() == 200) {
+            start = 0;
+        } else if (response.statusCode() == 206 && offset > 0 && contentRange != null
+                && contentRange.startsWith("bytes " + offset + "-")) {
+            start = offset;
+        } else {
+            response.body().close();
+            return null;
+        }
+        // Content-Length of a deflated body is the compressed size, which says nothing about the object's
+        long length = isDeflated(response) ? -1 : Transport.contentLength(response);
+        boolean ranges = "bytes".equals(response.headers().firstValue("Accept-Ranges").orElse(null));
+        return new Body(decoded(response), start, length < 0 ? -1 : start + length, ranges);
+    }
+
+    /**
+     * Copies in to out and into digest. Returns the number of bytes copied, or -1 as soon as
+     * more than limit bytes arrive.
+     */
+    public static long copyDigest(InputStream in, MessageDigest digest, OutputStream out, long limit) throws IOException {
+        byte[] buffer = new byte[65536];
+        long total = 0;
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            total += bytesRead;
+            if (total > limit) {
+                return -1;
+            }
+            digest.update(buffer, 0, bytesRead);
+            out.write(buffer, 0, bytesRead);
+        }
+        return total;
+    }
+
+    /**
+     * Fetches a small response fully; returns null on any error or a status other than 200 OK
+     */
+    private static byte[] get(String urlString) {
+        try (InputStream in = openStream(urlString)) {
+            return in == null ? null : in.readAllBytes();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Uploads a body with PUT; returns false on any error or a status other than 200 OK
+     */
+    public static boolean put(String urlString, byte[] body) {
+        return send("PUT", urlString, body, null) != null;
+    }
+
+    private static byte[] post(String urlString, byte[] body) {
+        return send("POST", urlString, body, "application/octet-stream");
+    }
+
+    /**
+     * Returns the body of a 200 response, or null. With a content type, a response of another
+     * type counts as a failure.
+     */
+    private static byte[] send(String method, String urlString, byte[] body, String contentType) {
+        try {
+            HttpResponse<InputStream> response = open(Transport.request(urlString, READ_TIMEOUT)
+                    .header("Content-Type", "application/octet-stream")
+                    .method(method, HttpRequest.BodyPublishers.ofByteArray(body)), READ_TIMEOUT);
+            try (InputStream in = response.body()) {
+                if (response.statusCode() != 200 || (contentType != null
+                        && !response.headers().firstValue("Content-Type").orElse("").startsWith(contentType))) {
+                    return null;
+                }
+                return in.readAllBytes();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends a request through Transport; the caller closes the body
+     */
+    private static HttpResponse<InputStream> open(HttpRequest.Builder request, int readTimeoutMillis) throws IOException {
+        return Transport.open(request.build(), readTimeoutMillis);
+    }
+
+    /**
+     * One page of a remote manifest
+     */
+    static class ManifestPage {
+        final List<String> hashes = new ArrayList<>();
+        long next; // Cursor to pass as since on the next call
+        long head; // Newest sequence number on the server
+    }
+
+    /**
+     * Response body of openFrom
+     */
+    static class Body implements Closeable {
+        final InputStream in;
+        final long start;  // Offset of the first byte in the object
+        final long length; // Total size of the object, -1 if unknown
+        final boolean ranges; // The server serves byte ranges of the object
+
+        Body(InputStream in, long start, long length, boolean ranges) {
+            this.in = in;
+            this.start = start;
+            this.length = length;
+            this.ranges = ranges;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The outcome of openHedged: the body, or null if the object was not available, which
+     * server it came from and whether the backup was asked
+     */
+    static class Hedged {
+        final Body body;
+        final String url;
+        final boolean fired;
+        final int status; // Of the response from url, 0 if the primary never answered
+
+        Hedged(Body body, String url, boolean fired, int status) {
+            this.body = body;
+            this.url = url;
+            this.fired = fired;
+            this.status = status;
+        }
+    }
+
+    /**
+     * A Bloom filter and when it was fetched
+     */
+    private static class CachedBloom {
+        final BloomFilter filter;
+        final long loadedAt;
+
+        CachedBloom(BloomFilter filter, long loadedAt) {
+            this.filter = filter;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * Summary of one prefix range in a remote Merkle tree
+     */
+    static class MerkleNode {
+        final String prefix;
+        final long count;
+        final String digest;
+
+        MerkleNode(String prefix, long count, String digest) {
+            this.prefix = prefix;
+            this.count = count;
+            this.digest = digest;
+        }
+    }
+
+    private static String sha256Hex(String text) {
+        return HashIndex.bytesToHex(newSha256().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
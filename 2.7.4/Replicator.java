@@ -0,0 +1,347 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Anti-entropy replication from the peers listed in servers.txt.
+ *
+ * The first round compares the local Merkle summary of the hash space with each peer's,
+ * descending only into prefixes whose digests differ, so a converged peer costs a single
+ * request. Later rounds only read what the peer added to its manifest since the last one, by
+ * cursor; the Merkle walk is repeated every decenhash.replicate.walkEveryRounds rounds, and
+ * whenever the peer has no manifest or its manifest was reset, to catch up on failed pulls. Hashes the peer has and this node lacks are pulled: the objects linked from the
+ * hash folder's index.html are verified against their names before anything is stored, and
+ * index.html is written last. Each peer has its own pull pool; transfers are capped by the
+ * BandwidthLimiter, whose per-server rate defaults to decenhash.replicate.peerBytesPerSecond.
+ *
+ * When this node keeps large objects in a chunk store and the peer serves a recipe for an
+ * object, only the chunks missing locally are transferred. With compression enabled, pulled
+ * text objects and index.html are stored deflated like local uploads.
+ */
+public class Replicator {
+    private static final Pattern LINK_PATTERN = Pattern.compile("href=\"([^\"]+)\"");
+    private static final Pattern LINKED_OBJECT = Pattern.compile("^\\.\\./([a-f0-9]{64})/(\\1\\.[A-Za-z0-9]{1,16})$");
+    private static final int MAX_INDEX_SIZE = 16 * 1024 * 1024; // Largest index.html accepted from a peer
+    private static final int MAX_RECIPE_SIZE = 16 * 1024 * 1024; // Largest recipe accepted from a peer, about 50 GB of minimum-size chunks
+
+    private static final long INTERVAL_SECONDS = Long.getLong("decenhash.replicate.intervalSeconds", 60);
+    private static final int PEER_CONCURRENCY = Integer.getInteger("decenhash.replicate.peerConcurrency", 4);
+    private static final int WALK_EVERY_ROUNDS = Integer.getInteger("decenhash.replicate.walkEveryRounds", 60);
+    private static final int MANIFEST_PAGE = 10000;
+
+    /**
+     * Called after a pulled hash folder is complete on disk
+     */
+    public interface StoredListener {
+        void stored(String hash) throws IOException;
+    }
+
+    private final Path dataDir;
+    private final Path serversFile;
+    private final HashIndex hashIndex;
+    private final ChunkStore chunkStore; // null when large objects are stored whole
+    private final boolean compress; // Store compressible objects and index.html deflated
+    private final StoredListener listener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "replicator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    public Replicator(Path dataDir, Path serversFile, HashIndex hashIndex, ChunkStore chunkStore, boolean compress, StoredListener listener) {
+        this.dataDir = dataDir;
+        this.serversFile = serversFile;
+        this.hashIndex = hashIndex;
+        this.chunkStore = chunkStore;
+        this.compress = compress;
+        this.listener = listener;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::runRound, 0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void runRound() {
+        List<String> servers;
+        try {
+            servers = Files.readAllLines(serversFile);
+        } catch (IOException e) {
+            System.err.println("Replication skipped, cannot read " + serversFile + ": " + e.getMessage());
+            return;
+        }
+
+        for (String server : servers) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            Peer peer = peers.computeIfAbsent(server, Peer::new);
+            try {
+                if (peer.cursor < 0 || peer.roundsSinceWalk >= WALK_EVERY_ROUNDS || !follow(peer)) {
+                    walk(peer);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Replication from " + server + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Compares the whole Merkle tree with the peer's and starts following its manifest from
+     * the head it had before the walk
+     */
+    private void walk(Peer peer) {
+        PeerClient.ManifestPage page = PeerClient.manifest(peer.server, 0, 1);
+        compare(peer, "");
+        peer.cursor = page == null ? -1 : page.head;
+        peer.roundsSinceWalk = 0;
+    }
+
+    /**
+     * Queues the hashes the peer logged since the cursor. Returns false if the manifest cannot
+     * be followed, so the caller walks the Merkle tree instead.
+     */
+    private boolean follow(Peer peer) {
+        peer.roundsSinceWalk++;
+        while (true) {
+            PeerClient.ManifestPage page = PeerClient.manifest(peer.server, peer.cursor, MANIFEST_PAGE);
+            if (page == null || page.head < peer.cursor) {
+                return false; // Peer is down, has no manifest, or its manifest was reset
+            }
+            for (String hash : page.hashes) {
+                queue(peer, hash);
+            }
+            peer.cursor = page.next;
+            if (page.hashes.isEmpty() || page.next >= page.head) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Walks the peer's Merkle tree below prefix and queues every hash missing locally
+     */
+    private void compare(Peer peer, String prefix) {
+        if (prefix.length() == HashIndex.MERKLE_LEAF_DEPTH) {
+            List<String> remote = PeerClient.merkleLeaf(peer.server, prefix);
+            if (remote == null) {
+                return;
+            }
+            for (String hash : remote) {
+                queue(peer, hash);
+            }
+            return;
+        }
+
+        List<PeerClient.MerkleNode> children = PeerClient.merkleChildren(peer.server, prefix);
+        if (children == null) {
+            return; // Peer is down or has no /merkle endpoint
+        }
+        for (PeerClient.MerkleNode child : children) {
+            if (child.count > 0 && !child.digest.equals(HashIndex.bytesToHex(hashIndex.digest(child.prefix)))) {
+                compare(peer, child.prefix);
+            }
+        }
+    }
+
+    /**
+     * Pulls a hash from the peer unless it is stored locally or already being pulled
+     */
+    private void queue(Peer peer, String hash) {
+        if (!hashIndex.contains(hash) && inFlight.add(hash)) {
+            peer.pool.submit(() -> {
+                try {
+                    pull(peer, hash);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Pull of " + hash + " from " + peer.server + " failed: " + e.getMessage());
+                } finally {
+                    inFlight.remove(hash);
+                }
+            });
+        }
+    }
+
+    /**
+     * Copies one hash folder from a peer
+     */
+    private void pull(Peer peer, String hash) throws IOException {
+        Path hashDir = dataDir.resolve(hash);
+        if (StoredFiles.exists(hashDir.resolve("index.html"))) {
+            listener.stored(hash); // Written by another tool; just index it
+            return;
+        }
+
+        String baseUrl = PeerClient.baseUrl(peer.server) + "/data/" + hash + "/";
+        byte[] indexHtml;
+        try (InputStream in = PeerClient.openStream(baseUrl + "index.html")) {
+            if (in == null) {
+                return;
+            }
+            indexHtml = in.readNBytes(MAX_INDEX_SIZE + 1);
+        }
+        if (indexHtml.length > MAX_INDEX_SIZE) {
+            throw new IOException("index.html larger than " + MAX_INDEX_SIZE + " bytes");
+        }
+
+        // Content objects live next to index.html; category folders only hold empty markers
+        Set<String> objects = new LinkedHashSet<>();
+        Set<String> markers = new LinkedHashSet<>();
+        Matcher links = LINK_PATTERN.matcher(new String(indexHtml, StandardCharsets.UTF_8));
+        while (links.find()) {
+            String link = links.group(1);
+            Matcher linked = LINKED_OBJECT.matcher(link);
+            if (link.matches(hash + "\\.[A-Za-z0-9]{1,16}")) {
+                objects.add(link);
+            } else if (linked.matches()) {
+                markers.add(linked.group(2));
+            }
+        }
+
+        Files.createDirectories(hashDir);
+        for (String object : objects) {
+            Path target = hashDir.resolve(object);
+            if (StoredFiles.exists(target)) {
+                continue;
+            }
+            if (chunkStore == null || !fetchChunked(peer, baseUrl + object, hash, StoredFiles.recipe(target))) {
+                fetchVerified(peer, baseUrl + object, hash, target);
+            }
+        }
+        for (String marker : markers) {
+            Path markerPath = hashDir.resolve(marker);
+            if (!Files.exists(markerPath)) {
+                Files.createFile(markerPath);
+            }
+        }
+
+        StoredFiles.write(hashDir.resolve("index.html"), indexHtml, compress);
+        listener.stored(hash);
+    }
+
+    /**
+     * Streams an object into place only if it hashes to its name
+     */
+    private void fetchVerified(Peer peer, String url, String expectedHash, Path target) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".part");
+        MessageDigest digest = newSha256();
+        try (InputStream in = PeerClient.openStream(url)) {
+            if (in == null) {
+                throw new IOException("Object missing: " + url);
+            }
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                byte[] buffer = new byte[65536];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                    out.write(buffer, 0, bytesRead);
+                }
+            }
+            String actualHash = HashIndex.bytesToHex(digest.digest());
+            if (!actualHash.equals(expectedHash)) {
+                throw new IOException("Hash mismatch for " + url + ": got " + actualHash);
+            }
+            if (compress && StoredFiles.isCompressible(target.getFileName().toString())) {
+                StoredFiles.write(target, Files.readAllBytes(tmp), true);
+            } else {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Copies an object as a recipe plus the chunks missing locally. Returns false if the peer
+     * stores the object whole, so the caller falls back to fetching the file.
+     */
+    private boolean fetchChunked(Peer peer, String url, String expectedHash, Path recipe) throws IOException {
+        byte[] remoteRecipe;
+        try (InputStream in = PeerClient.openStream(url + ChunkStore.RECIPE_SUFFIX)) {
+            if (in == null) {
+                return false;
+            }
+            remoteRecipe = in.readNBytes(MAX_RECIPE_SIZE + 1);
+        }
+        if (remoteRecipe.length > MAX_RECIPE_SIZE) {
+            throw new IOException("Recipe larger than " + MAX_RECIPE_SIZE + " bytes: " + url);
+        }
+
+        Path tmp = recipe.resolveSibling(recipe.getFileName() + ".part");
+        try {
+            Files.write(tmp, remoteRecipe);
+            for (String chunkHash : ChunkStore.chunks(tmp)) {
+                if (!ChunkStore.CHUNK_NAME.matcher(chunkHash).matches()) {
+                    throw new IOException("Invalid chunk name in recipe " + url);
+                }
+                if (chunkStore.hasChunk(chunkHash)) {
+                    continue;
+                }
+                byte[] chunk;
+                try (InputStream in = PeerClient.openStream(PeerClient.baseUrl(peer.server) + "/chunks/" + chunkHash)) {
+                    if (in == null) {
+                        throw new IOException("Chunk " + chunkHash + " missing on " + peer.server);
+                    }
+                    chunk = in.readNBytes(ChunkStore.MAX_CHUNK + 1); // No chunk is cut larger
+                }
+                if (chunk.length > ChunkStore.MAX_CHUNK) {
+                    throw new IOException("Chunk " + chunkHash + " from " + peer.server + " is larger than " + ChunkStore.MAX_CHUNK + " bytes");
+                }
+                if (!chunkStore.putChunk(chunk, chunk.length).equals(chunkHash)) {
+                    throw new IOException("Chunk " + chunkHash + " from " + peer.server + " does not match its name");
+                }
+            }
+
+            // The reassembled object must still hash to its name before the recipe goes live
+            MessageDigest digest = newSha256();
+            try (InputStream in = chunkStore.open(tmp)) {
+                byte[] buffer = new byte[65536];
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, bytesRead);
+                }
+            }
+            if (!HashIndex.bytesToHex(digest.digest()).equals(expectedHash)) {
+                throw new IOException("Hash mismatch for chunked object " + url);
+            }
+            Files.move(tmp, recipe, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+
+    /**
+     * Per-peer pull pool and manifest cursor
+     */
+    private static class Peer {
+        final String server;
+        final ExecutorService pool = Executors.newFixedThreadPool(PEER_CONCURRENCY, r -> {
+            Thread thread = new Thread(r, "replicator-pull");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long cursor = -1; // Manifest position followed, -1 until a Merkle walk set it
+        int roundsSinceWalk;
+
+        Peer(String server) {
+            this.server = server;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Per-server health shared by every tool through the file scoreboard.txt.
+ *
+ * Each request a tool makes is recorded against the server's origin (scheme://host:port):
+ * an exponentially weighted moving average of the time to the response headers, an error
+ * rate averaged the same way, and the times of the last success and failure. order() sorts
+ * candidates by expected cost, so a dead first line in servers.txt no longer costs every
+ * lookup its timeout, and leaves out servers in a failure cooldown that doubles with each
+ * consecutive failure. A 404 counts as a success: the server answered. The latest latencies
+ * are also kept in memory, for the percentile hedgeDelay() waits before asking a second server.
+ *
+ * The file is merged on save, newest record per server winning, so tools running side by
+ * side do not lose each other's updates. It is written on exit and at most every
+ * SAVE_INTERVAL_MILLIS while running. Line format:
+ *
+ *   <origin> <ewma latency ms> <error rate> <last success ms> <last failure ms> <consecutive failures> <updated ms>
+ */
+public class Scoreboard {
+    private static final Path FILE = Paths.get(System.getProperty("decenhash.scoreboard", "scoreboard.txt"));
+    private static final double ALPHA = 0.2; // Weight of the newest sample
+    private static final long FAILURE_PENALTY_MILLIS = 5000; // Cost of an error, about one connect timeout
+    private static final long COOLDOWN_MILLIS = Long.getLong("decenhash.scoreboard.cooldownMillis", 30000);
+    private static final long MAX_COOLDOWN_MILLIS = 60 * 60 * 1000;
+    private static final long SAVE_INTERVAL_MILLIS = 60 * 1000;
+    private static final int LATENCY_SAMPLES = 64; // Latencies kept per server for the percentile
+    private static final int MIN_LATENCY_SAMPLES = 8; // Fewer samples give the default hedge delay
+    private static final long HEDGE_DELAY_MILLIS = Long.getLong("decenhash.hedge.delayMillis", 1000); // For servers without enough samples
+    private static final long MIN_HEDGE_DELAY_MILLIS = Long.getLong("decenhash.hedge.minMillis", 50);
+
+    // Guarded by Scoreboard.class
+    private static Map<String, Entry> entries;
+    private static final Map<String, long[]> latencies = new HashMap<>(); // Ring of LATENCY_SAMPLES, then the count
+    private static boolean dirty;
+    private static long lastSave;
+
+    /**
+     * Records a request that got a response after the given time
+     */
+    public static void success(String url, long millis) {
+        record(url, millis, true);
+    }
+
+    /**
+     * Records a request that failed to connect, timed out or got a server error
+     */
+    public static void failure(String url) {
+        record(url, 0, false);
+    }
+
+    /**
+     * Returns the servers ordered by expected cost, unknown servers first so they get measured.
+     * Servers in a failure cooldown are left out unless every server is.
+     */
+    public static List<String> order(List<String> servers) {
+        long now = System.currentTimeMillis();
+        List<String> healthy = new ArrayList<>();
+        List<String> cooling = new ArrayList<>();
+        Map<String, Double> costs = new HashMap<>();
+        synchronized (Scoreboard.class) {
+            load();
+            for (String server : servers) {
+                if (server.trim().isEmpty()) {
+                    continue;
+                }
+                Entry entry = entries.get(origin(server));
+                costs.put(server, entry == null ? 0 : entry.cost());
+                (entry != null && entry.coolingUntil() > now ? cooling : healthy).add(server);
+            }
+        }
+        List<String> ordered = healthy.isEmpty() ? cooling : healthy;
+        ordered.sort(Comparator.comparing(costs::get)); // Stable: ties keep the order of servers.txt
+        return ordered;
+    }
+
+    /**
+     * How long to wait for a server's response before asking another one as well: the 95th
+     * percentile of its recent latencies, or decenhash.hedge.delayMillis until enough are known
+     */
+    public static long hedgeDelay(String url) {
+        long[] sorted;
+        synchronized (Scoreboard.class) {
+            long[] ring = latencies.get(origin(url));
+            int count = ring == null ? 0 : (int) Math.min(ring[LATENCY_SAMPLES], LATENCY_SAMPLES);
+            if (count < MIN_LATENCY_SAMPLES) {
+                return HEDGE_DELAY_MILLIS;
+            }
+            sorted = Arrays.copyOf(ring, count);
+        }
+        Arrays.sort(sorted);
+        return Math.max(sorted[(int) Math.ceil(sorted.length * 0.95) - 1], MIN_HEDGE_DELAY_MILLIS);
+    }
+
+    /**
+     * The scheme, host and port of a server or object URL
+     */
+    static String origin(String url) {
+        try {
+            URI uri = new URI(url.trim());
+            if (uri.getScheme() != null && uri.getRawAuthority() != null) {
+                return uri.getScheme().toLowerCase() + "://" + uri.getRawAuthority().toLowerCase();
+            }
+        } catch (Exception e) {
+            // Fall back to the text itself
+        }
+        return PeerClient.baseUrl(url);
+    }
+
+    private static void record(String url, long millis, boolean ok) {
+        long now = System.currentTimeMillis();
+        String origin = origin(url);
+        synchronized (Scoreboard.class) {
+            load();
+            Entry entry = entries.computeIfAbsent(origin, key -> new Entry());
+            if (ok) {
+                long[] ring = latencies.computeIfAbsent(origin, key -> new long[LATENCY_SAMPLES + 1]);
+                ring[(int) (ring[LATENCY_SAMPLES]++ % LATENCY_SAMPLES)] = millis;
+                entry.latency = entry.lastSuccess == 0 && entry.lastFailure == 0
+                        ? millis : (1 - ALPHA) * entry.latency + ALPHA * millis;
+                entry.errorRate = (1 - ALPHA) * entry.errorRate;
+                entry.lastSuccess = now;
+                entry.consecutiveFailures = 0;
+            } else {
+                entry.errorRate = (1 - ALPHA) * entry.errorRate + ALPHA;
+                entry.lastFailure = now;
+                entry.consecutiveFailures++;
+            }
+            entry.updated = now;
+            dirty = true;
+            if (now - lastSave >= SAVE_INTERVAL_MILLIS) {
+                save();
+            }
+        }
+    }
+
+    /**
+     * Reads the file once per process and registers the save on exit
+     */
+    private static void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = read();
+        lastSave = System.currentTimeMillis();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (Scoreboard.class) {
+                if (dirty) {
+                    save();
+                }
+            }
+        }, "scoreboard"));
+    }
+
+    /**
+     * Merges our entries with the file's, keeping the newer record of each server, and
+     * replaces the file atomically
+     */
+    private static void save() {
+        lastSave = System.currentTimeMillis();
+        Map<String, Entry> merged = read();
+        for (Map.Entry<String, Entry> mine : entries.entrySet()) {
+            Entry theirs = merged.get(mine.getKey());
+            if (theirs == null || theirs.updated <= mine.getValue().updated) {
+                merged.put(mine.getKey(), mine.getValue());
+            }
+        }
+        entries.putAll(merged);
+
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : merged.entrySet()) {
+            Entry e = entry.getValue();
+            content.append(entry.getKey()).append(' ')
+                    .append(Math.round(e.latency)).append(' ')
+                    .append(String.format(Locale.ROOT, "%.4f", e.errorRate)).append(' ')
+                    .append(e.lastSuccess).append(' ')
+                    .append(e.lastFailure).append(' ')
+                    .append(e.consecutiveFailures).append(' ')
+                    .append(e.updated).append('\n');
+        }
+        try {
+            Path dir = FILE.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            Path tmp = Files.createTempFile(dir, "scoreboard", ".part");
+            Files.write(tmp, content.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("Could not save " + FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static Map<String, Entry> read() {
+        Map<String, Entry> result = new HashMap<>();
+        if (!Files.exists(FILE)) {
+            return result;
+        }
+        try {
+            for (String line : Files.readAllLines(FILE, StandardCharsets.UTF_8)) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length != 7) {
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry();
+                    entry.latency = Double.parseDouble(fields[1]);
+                    entry.errorRate = Double.parseDouble(fields[2]);
+                    entry.lastSuccess = Long.parseLong(fields[3]);
+                    entry.lastFailure = Long.parseLong(fields[4]);
+                    entry.consecutiveFailures = Integer.parseInt(fields[5]);
+                    entry.updated = Long.parseLong(fields[6]);
+                    result.put(fields[0], entry);
+                } catch (NumberFormatException e) {
+                    // Skip damaged lines
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + FILE + ": " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * What is known about one server
+     */
+    private static class Entry {
+        double latency;   // EWMA milliseconds to the response headers
+        double errorRate; // EWMA of 1 per failure and 0 per success
+        long lastSuccess;
+        long lastFailure;
+        int consecutiveFailures;
+        long updated;
+
+        double cost() {
+            return latency + errorRate * FAILURE_PENALTY_MILLIS;
+        }
+
+        long coolingUntil() {
+            if (consecutiveFailures == 0) {
+                return 0;
+            }
+            long cooldown = COOLDOWN_MILLIS << Math.min(consecutiveFailures - 1, 20);
+            return lastFailure + Math.min(cooldown, MAX_COOLDOWN_MILLIS);
+        }
+    }
+}
@@ -1,19 +1,41 @@
 import java.io.*;
-import java.net.*;
 import java.nio.file.*;
-import java.security.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Records in the availability store which servers hold each file of files.txt; "java
+ * Availability export" writes the classic servers/<hash>.txt files from it.
+ *
+ *   java Servers [verify|probe|full]
+ *
+ * verify (the default) asks each server with HEAD whether it has a file, then checks a few
+ * random chunks fetched as byte ranges against a trusted Merkle tree of the file. A tree is
+ * trusted once a full download of the file has matched its hash, and is cached under
+ * cache/trees, so each file crosses the network in full once instead of once per server.
+ * probe trusts HEAD alone, checking only the size against a cached tree; full downloads every
+ * file from every server. Servers are checked concurrently, one thread each; a server whose
+ * thread finds another one establishing the tree of a file checks its other files first and
+ * comes back to that one once the tree is there.
+ */
 public class Servers {
+    private static final long MAX_FILE_SIZE = Long.getLong("decenhash.download.maxBytes", 8L * 1024 * 1024 * 1024); // Larger bodies are abandoned
+    private static final int SAMPLES = Integer.getInteger("decenhash.servers.samples", 2); // Chunks checked per file and server
+    private static final int READ_TIMEOUT = 30000; // 30 seconds
+    private static final Path TREE_CACHE_DIR = Paths.get("cache", "trees");
+
+    // Trees being established by a full download, by hash; null if that copy did not match
+    private static final Map<String, CompletableFuture<MerkleTree>> pendingTrees = new ConcurrentHashMap<>();
+    private static final AtomicLong bytes = new AtomicLong(); // Body bytes received
+
     public static void main(String[] args) {
-        // Create servers directory if it doesn't exist
-        Path serversDir = Paths.get("servers");
-        try {
-            if (!Files.exists(serversDir)) {
-                Files.createDirectory(serversDir);
-            }
-        } catch (IOException e) {
-            System.err.println("Error creating servers directory: " + e.getMessage());
+        String mode = args.length > 0 ? args[0] : "verify";
+        if (!mode.equals("verify") && !mode.equals("probe") && !mode.equals("full")) {
+            System.err.println("Usage: java Servers [verify|probe|full]");
             return;
         }
 
@@ -23,6 +45,7 @@ public class Servers {
             System.err.println("Error reading servers.txt");
             return;
         }
+        servers.removeIf(server -> server.trim().isEmpty());
 
         // Read files from files.txt
         List<String> files = readLinesFromFile("files.txt");
@@ -31,109 +54,256 @@ public class Servers {
             return;
         }
 
+        List<String> hashes = new ArrayList<>();
         for (String filename : files) {
-            // Get filename without extension
-            String filenameNoExt = getFilenameWithoutExtension(filename);
-            String expectedHash = filenameNoExt;
+            hashes.add(getFilenameWithoutExtension(filename));
+        }
 
-            for (String server : servers) {
-                // Normalize server URL and add 'data' segment
-                String normalizedServer = server.replaceAll("/+$", "") + "/";
-                String url = normalizedServer + "data/" + filenameNoExt + "/" + filename;
+        long startTime = System.nanoTime();
+        Map<String, Integer> found = new ConcurrentHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, servers.size()), r -> {
+            Thread thread = new Thread(r, "servers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (String server : servers) {
+            pool.submit(() -> found.put(server, checkServer(server, files, hashes, mode)));
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-                try {
-                    // Download file
-                    byte[] fileContent = downloadFile(url);
-                    if (fileContent == null) {
-                        continue; // File not found on this server
-                    }
+        for (String server : servers) {
+            System.out.println("  " + server + ": " + found.getOrDefault(server, 0) + " of " + files.size() + " file(s)");
+        }
+        System.out.printf("Checked %d server(s) in %s mode in %.1f s, %.1f MB transferred%n", servers.size(), mode,
+                (System.nanoTime() - startTime) / 1e9, bytes.get() / 1e6);
+        System.out.println("Processing complete.");
+    }
 
-                    // Calculate hash
-                    String actualHash = calculateSHA256(fileContent);
-
-                    // Check if hash matches
-                    if (actualHash.equals(expectedHash)) {
-                        // Create hash file in servers directory
-                        Path hashFile = serversDir.resolve(expectedHash + ".txt");
-
-                        // Read existing servers if file exists
-                        Set<String> existingServers = new HashSet<>();
-                        if (Files.exists(hashFile)) {
-                            List<String> lines = Files.readAllLines(hashFile);
-                            existingServers.addAll(lines);
-                        }
-
-                        // Add server if not already present
-                        if (!existingServers.contains(server)) {
-                            Files.write(hashFile, (server + System.lineSeparator()).getBytes(), 
-                                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                        }
-                    }
-                } catch (IOException e) {
-                    // Silently skip errors
+    /**
+     * Checks every file of files.txt on one server and returns how many it holds
+     */
+    private static int checkServer(String server, List<String> files, List<String> hashes, String mode) {
+        // Ask the server once per batch which of the hashes it stores.
+        // A null result means the server has no /have endpoint and is probed file by file.
+        BitSet present = PeerClient.have(server, hashes);
+
+        int found = 0;
+        List<Integer> deferred = new ArrayList<>(); // Files whose tree another thread is establishing
+        for (int i = 0; i < files.size(); i++) {
+            // Skip files the server reported it doesn't have
+            if (present != null && !present.get(i)) {
+                continue;
+            }
+            String hash = hashes.get(i);
+            if (mode.equals("verify") && cachedTree(hash) == null) {
+                // No trusted tree yet: the first server to claim the file establishes it with a
+                // full download, the others check it after their other files
+                CompletableFuture<MerkleTree> mine = new CompletableFuture<>();
+                if (pendingTrees.putIfAbsent(hash, mine) != null) {
+                    deferred.add(i);
                     continue;
                 }
+                boolean holds = false;
+                try {
+                    holds = check(server, files.get(i), hash, cachedTree(hash) == null ? "full" : mode);
+                } finally {
+                    pendingTrees.remove(hash, mine);
+                    mine.complete(cachedTree(hash));
+                }
+                if (holds) {
+                    found++;
+                }
+                continue;
+            }
+            if (check(server, files.get(i), hash, mode)) {
+                found++;
             }
         }
-
-        System.out.println("Processing complete.");
+        for (int i : deferred) {
+            if (check(server, files.get(i), hashes.get(i), mode)) {
+                found++;
+            }
+        }
+        return found;
     }
 
-    private static List<String> readLinesFromFile(String filename) {
+    /**
+     * Checks one file on a server and records it in the availability store if the server holds it
+     */
+    private static boolean check(String server, String filename, String expectedHash, String mode) {
+        // Normalize server URL and add 'data' segment
+        String normalizedServer = server.replaceAll("/+$", "") + "/";
+        String url = normalizedServer + "data/" + expectedHash + "/" + filename;
+
         try {
-            return Files.readAllLines(Paths.get(filename));
-        } catch (IOException e) {
-            return null;
+            boolean holds;
+            switch (mode) {
+                case "full":
+                    holds = fullCheck(expectedHash, url);
+                    break;
+                case "probe":
+                    holds = probe(expectedHash, url);
+                    break;
+                default:
+                    holds = verify(expectedHash, url);
+            }
+            if (holds) {
+                Availability.shared().add(expectedHash, server);
+            }
+            return holds;
+        } catch (IOException | IllegalArgumentException e) {
+            return false; // Silently skip errors and names that are not hashes
         }
     }
 
-    private static String getFilenameWithoutExtension(String filename) {
-        int dotIndex = filename.lastIndexOf('.');
-        return (dotIndex == -1) ? filename : filename.substring(0, dotIndex);
+    /**
+     * HEAD only: the server has the file, with the right size if a tree of it is cached and the
+     * server gave one
+     */
+    private static boolean probe(String hash, String url) {
+        long size = PeerClient.size(url);
+        if (size == PeerClient.UNKNOWN_SIZE) {
+            return true;
+        }
+        MerkleTree tree = cachedTree(hash);
+        return size >= 0 && (tree == null || tree.size() == size);
     }
 
-    private static byte[] downloadFile(String urlString) {
-        try {
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(5000);
-            connection.setReadTimeout(5000);
-
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                return null;
+    /**
+     * HEAD, then SAMPLES random chunks checked against the trusted tree. Without a trusted tree
+     * the file is downloaded in full once to establish one; servers that do not serve ranges
+     * or do not give the size are checked in full.
+     */
+    private static boolean verify(String hash, String url) throws IOException {
+        long size = PeerClient.size(url);
+        if (size == PeerClient.UNKNOWN_SIZE) {
+            return fullCheck(hash, url);
+        }
+        if (size < 0 || size > MAX_FILE_SIZE) {
+            return false;
+        }
+        MerkleTree tree = cachedTree(hash);
+        if (tree == null) {
+            // Wait, without holding a lock, for a tree another server is still establishing
+            CompletableFuture<MerkleTree> pending = pendingTrees.get(hash);
+            tree = pending == null ? null : pending.join();
+            if (tree == null) {
+                return fullCheck(hash, url); // Caches the tree if the file matches
             }
+        }
+        if (tree.size() != size) {
+            return false;
+        }
 
-            try (InputStream in = connection.getInputStream();
-                 ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+        List<Integer> chunks = new ArrayList<>();
+        for (int i = 0; size > 0 && i < tree.chunkCount(); i++) {
+            chunks.add(i);
+        }
+        Collections.shuffle(chunks, ThreadLocalRandom.current());
+        for (int chunk : chunks.subList(0, Math.min(SAMPLES, chunks.size()))) {
+            long first = (long) chunk * tree.chunkSize();
+            int length = (int) (Math.min(size, first + tree.chunkSize()) - first);
+            byte[] data;
+            try (InputStream in = PeerClient.openRange(url, first, first + length - 1, READ_TIMEOUT)) {
+                if (in == null) {
+                    return fullCheck(hash, url);
                 }
-                return out.toByteArray();
+                data = in.readNBytes(length);
+            }
+            bytes.addAndGet(data.length);
+            if (!tree.verifyChunk(chunk, data, data.length)) {
+                return false;
             }
-        } catch (Exception e) {
-            return null;
         }
+        return true;
     }
 
-    private static String calculateSHA256(byte[] data) {
-        try {
+    /**
+     * Downloads the whole file, hashing it and building its tree as it streams in. The tree is
+     * cached when the content matches its hash.
+     */
+    private static boolean fullCheck(String hash, String url) throws IOException {
+        try (InputStream in = PeerClient.openStream(url)) {
+            if (in == null) {
+                return false;
+            }
             MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(data);
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) {
-                    hexString.append('0');
-                }
-                hexString.append(hex);
+            MerkleTree tree = MerkleTree.build(new DigestInputStream(limited(in), digest));
+            if (!hash.equals(HashIndex.bytesToHex(digest.digest()))) {
+                return false;
             }
-            return hexString.toString();
+            saveTree(hash, tree);
+            return true;
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException("SHA-256 algorithm not found", e);
         }
     }
+
+    /**
+     * Counts what is read from in and fails once it exceeds MAX_FILE_SIZE
+     */
+    private static InputStream limited(InputStream in) {
+        return new FilterInputStream(in) {
+            private long total;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int n = super.read(buffer, offset, length);
+                if (n > 0) {
+                    bytes.addAndGet(n);
+                    total += n;
+                    if (total > MAX_FILE_SIZE) {
+                        throw new IOException("file larger than " + MAX_FILE_SIZE + " bytes");
+                    }
+                }
+                return n;
+            }
+        };
+    }
+
+    private static MerkleTree cachedTree(String hash) {
+        try {
+            Path file = TREE_CACHE_DIR.resolve(hash + MerkleTree.TREE_SUFFIX);
+            return Files.exists(file) ? MerkleTree.fromBytes(Files.readAllBytes(file)) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void saveTree(String hash, MerkleTree tree) {
+        try {
+            Files.createDirectories(TREE_CACHE_DIR);
+            Path tmp = Files.createTempFile(TREE_CACHE_DIR, "tree", ".part");
+            Files.write(tmp, tree.toBytes());
+            Files.move(tmp, TREE_CACHE_DIR.resolve(hash + MerkleTree.TREE_SUFFIX),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not cache tree of " + hash + ": " + e.getMessage());
+        }
+    }
+
+    private static List<String> readLinesFromFile(String filename) {
+        try {
+            return Files.readAllLines(Paths.get(filename));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String getFilenameWithoutExtension(String filename) {
+        int dotIndex = filename.lastIndexOf('.');
+        return (dotIndex == -1) ? filename : filename.substring(0, dotIndex);
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,151 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads and writes files under data/ in whichever form they are stored.
+ *
+ * A file named "x" can be on disk as "x" itself, as "x.deflate" or, for large objects, as a
+ * chunk store recipe "x.recipe". Hashes and URLs always refer to the uncompressed bytes.
+ *
+ * A .deflate file is a 12-byte header (the magic "DHZ1" and the uncompressed length as a long)
+ * followed by a zlib stream, which is what HTTP calls Content-Encoding: deflate, so it can be
+ * served without inflating it. Files written before the header existed hold the zlib stream
+ * alone; their length is found by inflating them.
+ */
+public class StoredFiles {
+    static final String DEFLATE_SUFFIX = ".deflate";
+    private static final byte[] DEFLATE_MAGIC = {'D', 'H', 'Z', '1'};
+    private static final int DEFLATE_HEADER_SIZE = 12; // Magic + uncompressed length
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "html", "htm", "css", "js", "json", "xml", "svg", "csv", "md"));
+
+    public static boolean exists(Path path) {
+        return Files.exists(path) || Files.exists(deflated(path)) || Files.exists(recipe(path));
+    }
+
+    /**
+     * Opens the uncompressed content of a stored file
+     */
+    public static InputStream open(Path path, ChunkStore chunkStore) throws IOException {
+        if (Files.exists(path)) {
+            return Files.newInputStream(path);
+        }
+        if (Files.exists(deflated(path))) {
+            return new InflaterInputStream(openDeflated(path));
+        }
+        if (Files.exists(recipe(path))) {
+            return chunkStore.open(recipe(path));
+        }
+        throw new NoSuchFileException(path.toString());
+    }
+
+    /**
+     * Size of the uncompressed content of a stored file
+     */
+    public static long size(Path path) throws IOException {
+        if (Files.exists(path)) {
+            return Files.size(path);
+        }
+        if (Files.exists(deflated(path))) {
+            long length = headerLength(deflated(path));
+            if (length >= 0) {
+                return length;
+            }
+            try (InputStream in = open(path, null)) {
+                return in.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        if (Files.exists(recipe(path))) {
+            return ChunkStore.size(recipe(path));
+        }
+        throw new NoSuchFileException(path.toString());
+    }
+
+    /**
+     * Opens the zlib stream of a file stored deflated, past its header
+     */
+    public static InputStream openDeflated(Path path) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(deflated(path)));
+        in.mark(DEFLATE_HEADER_SIZE);
+        if (!isHeader(in.readNBytes(DEFLATE_HEADER_SIZE))) {
+            in.reset(); // Stored without a header
+        }
+        return in;
+    }
+
+    /**
+     * Length of the zlib stream openDeflated returns
+     */
+    public static long deflatedSize(Path path) throws IOException {
+        long size = Files.size(deflated(path));
+        return headerLength(deflated(path)) >= 0 ? size - DEFLATE_HEADER_SIZE : size;
+    }
+
+    public static byte[] read(Path path, ChunkStore chunkStore) throws IOException {
+        try (InputStream in = open(path, chunkStore)) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Replaces a stored file, compressing it when allowed, its type compresses and it gets smaller
+     */
+    public static void write(Path path, byte[] content, boolean compress) throws IOException {
+        if (compress && isCompressible(path.getFileName().toString())) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+            compressed.write(DEFLATE_MAGIC);
+            compressed.write(ByteBuffer.allocate(8).putLong(content.length).array());
+            try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_COMPRESSION))) {
+                out.write(content);
+            }
+            if (compressed.size() < content.length) {
+                replace(deflated(path), compressed.toByteArray());
+                Files.deleteIfExists(path);
+                return;
+            }
+        }
+        replace(path, content);
+        Files.deleteIfExists(deflated(path));
+    }
+
+    public static boolean isCompressible(String fileName) {
+        int dotIndex = fileName.lastIndexOf('.');
+        return dotIndex > 0 && COMPRESSIBLE_EXTENSIONS.contains(fileName.substring(dotIndex + 1).toLowerCase());
+    }
+
+    static Path deflated(Path path) {
+        return path.resolveSibling(path.getFileName() + DEFLATE_SUFFIX);
+    }
+
+    /**
+     * The uncompressed length recorded in a .deflate file's header, or -1 if it has none
+     */
+    private static long headerLength(Path deflated) throws IOException {
+        try (InputStream in = Files.newInputStream(deflated)) {
+            byte[] header = in.readNBytes(DEFLATE_HEADER_SIZE);
+            return isHeader(header) ? ByteBuffer.wrap(header, DEFLATE_MAGIC.length, 8).getLong() : -1;
+        }
+    }
+
+    private static boolean isHeader(byte[] header) {
+        return header.length == DEFLATE_HEADER_SIZE && Arrays.equals(header, 0, DEFLATE_MAGIC.length, DEFLATE_MAGIC, 0, DEFLATE_MAGIC.length);
+    }
+
+    static Path recipe(Path path) {
+        return path.resolveSibling(path.getFileName() + ChunkStore.RECIPE_SUFFIX);
+    }
+
+    private static void replace(Path path, byte[] content) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".part");
+        Files.write(tmp, content);
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-source download of one file over byte ranges.
+ *
+ * The file is cut into pieces that workers for every server holding it pull from a shared
+ * queue, so faster servers fetch more of them. Once the queue is empty, idle workers also take
+ * pieces still in progress on another server, which re-assigns ranges stuck on a stalled server;
+ * the first copy to arrive is kept. Pieces match the chunks of the object's Merkle tree sidecar,
+ * so when at least two sources agree on a tree each piece is checked as it arrives and a server
+ * sending a bad piece is dropped. The whole file is always checked against its name before it
+ * is moved into place.
+ *
+ * Pieces are written to <target>.swarm, which is kept when the download fails or is
+ * interrupted while a tree is agreed. The next attempt checks the pieces already in it against
+ * the tree and fetches only those that are missing or bad.
+ */
+public class Swarm {
+    private static final int CONNECTIONS_PER_SERVER = Integer.getInteger("decenhash.swarm.connectionsPerServer", 2);
+    private static final int STALL_MILLIS = Integer.getInteger("decenhash.swarm.stallMillis", 10000); // Read timeout of one range
+    private static final int MAX_FAILURES = 3; // Consecutive failed ranges before a server is dropped
+    private static final int MAX_DUPLICATES = 2; // Fetchers of one piece at the end of the download
+
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "swarm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum Result { OK, FAILED, CORRUPT }
+
+    private final String hash;
+    private final Map<String, String> sources; // Server to object URL
+    private final long size;
+    private final Map<String, Semaphore> serverSlots;
+    private final AtomicLong bytes;
+
+    private MerkleTree tree;
+    private int pieceSize;
+    private int pieceCount;
+
+    // Guarded by this
+    private final Deque<Integer> queue = new ArrayDeque<>();
+    private final BitSet done = new BitSet();
+    private int[] fetchers;
+    private int remaining;
+    private int liveWorkers;
+    private FileChannel channel;
+    private final Set<String> contributors = new HashSet<>();
+    private final Set<String> corrupt = new HashSet<>(); // Servers that sent data not matching the tree
+
+    /**
+     * serverSlots caps the connections to each server across all downloads; bytes counts what is received
+     */
+    public Swarm(String hash, Map<String, String> sources, long size, Map<String, Semaphore> serverSlots, AtomicLong bytes) {
+        this.hash = hash;
+        this.sources = sources;
+        this.size = size;
+        this.serverSlots = serverSlots;
+        this.bytes = bytes;
+    }
+
+    /**
+     * Downloads the file to target. Returns the servers that supplied only good pieces, or null if the
+     * file could not be completed or does not hash to its name.
+     */
+    public Set<String> download(Path target) throws IOException {
+        tree = agreedTree();
+        pieceSize = tree != null ? tree.chunkSize() : MerkleTree.CHUNK_SIZE;
+        pieceCount = (int) Math.max(1, (size + pieceSize - 1) / pieceSize);
+        fetchers = new int[pieceCount];
+
+        // Not <target>.part, which holds a contiguous prefix that a single-server download can resume
+        Path partPath = target.resolveSibling(target.getFileName() + ".swarm");
+        boolean keep = tree != null; // Pieces on disk can only be trusted again against a tree
+        try {
+            synchronized (this) {
+                channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+                if (tree != null) {
+                    resume();
+                } else {
+                    channel.truncate(0);
+                }
+                for (int i = done.nextClearBit(0); i < pieceCount; i = done.nextClearBit(i + 1)) {
+                    queue.add(i);
+                }
+                remaining = pieceCount - done.cardinality();
+
+                for (Map.Entry<String, String> source : sources.entrySet()) {
+                    for (int c = 0; c < CONNECTIONS_PER_SERVER; c++) {
+                        liveWorkers++;
+                        workers.submit(() -> work(source.getKey(), source.getValue()));
+                    }
+                }
+                // Wait until every piece is in or every server has been dropped
+                while (remaining > 0 && liveWorkers > 0) {
+                    wait();
+                }
+                if (remaining > 0) {
+                    return null;
+                }
+            }
+
+            if (!hash.equals(sha256Hex(partPath))) {
+                keep = false;
+                return null;
+            }
+            synchronized (this) {
+                channel.close();
+            }
+            Files.move(partPath, target, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                Set<String> good = new HashSet<>(contributors);
+                good.removeAll(corrupt);
+                return good;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            synchronized (this) {
+                remaining = 0; // Stops workers still running
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            if (!keep) {
+                Files.deleteIfExists(partPath);
+            }
+        }
+    }
+
+    /**
+     * Marks the pieces a previous attempt left in the .swarm file as done if they match the tree
+     */
+    private void resume() throws IOException {
+        if (channel.size() > size) {
+            channel.truncate(size);
+        }
+        long onDisk = channel.size();
+        for (int piece = 0; piece < pieceCount && (long) piece * pieceSize < onDisk; piece++) {
+            long first = (long) piece * pieceSize;
+            int length = (int) (Math.min(size, first + pieceSize) - first);
+            ByteBuffer data = ByteBuffer.allocate(length);
+            while (data.hasRemaining()) {
+                if (channel.read(data, first + data.position()) < 0) {
+                    break;
+                }
+            }
+            if (!data.hasRemaining() && tree.verifyChunk(piece, data.array(), length)) {
+                done.set(piece);
+            }
+        }
+        if (!done.isEmpty()) {
+            System.out.println("Resuming " + hash + ": " + done.cardinality() + " of " + pieceCount + " piece(s) already on disk");
+        }
+    }
+
+    /**
+     * Fetches pieces from one server until none are left or the server is dropped
+     */
+    private void work(String server, String url) {
+        int failures = 0;
+        try {
+            while (true) {
+                int piece = next();
+                if (piece < 0) {
+                    return;
+                }
+                Result result = fetch(server, url, piece);
+                finish(piece, result == Result.OK);
+                if (result == Result.CORRUPT) {
+                    synchronized (this) {
+                        corrupt.add(server);
+                    }
+                    System.err.println("Dropping " + server + ": bad data for " + hash);
+                    return;
+                }
+                failures = result == Result.OK ? 0 : failures + 1;
+                if (failures >= MAX_FAILURES) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                liveWorkers--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Picks the next piece for a worker: queued pieces first, then at the end a piece still in
+     * progress elsewhere. Returns -1 when the download is complete.
+     */
+    private synchronized int next() throws InterruptedException {
+        while (remaining > 0) {
+            Integer queued;
+            while ((queued = queue.poll()) != null) {
+                if (!done.get(queued)) {
+                    fetchers[queued]++;
+                    return queued;
+                }
+            }
+
+            int best = -1;
+            for (int i = done.nextClearBit(0); i < pieceCount; i = done.nextClearBit(i + 1)) {
+                if (best < 0 || fetchers[i] < fetchers[best]) {
+                    best = i;
+                }
+            }
+            if (best >= 0 && fetchers[best] < MAX_DUPLICATES) {
+                fetchers[best]++;
+                return best;
+            }
+            wait(STALL_MILLIS);
+        }
+        return -1;
+    }
+
+    private Result fetch(String server, String url, int piece) throws InterruptedException {
+        long first = (long) piece * pieceSize;
+        int length = (int) (Math.min(size, first + pieceSize) - first);
+        Semaphore slots = serverSlots.computeIfAbsent(server, s -> new Semaphore(CONNECTIONS_PER_SERVER));
+        slots.acquire();
+        try (InputStream in = length == 0 ? InputStream.nullInputStream() : PeerClient.openRange(url, first, first + length - 1, STALL_MILLIS)) {
+            if (in == null) {
+                return Result.FAILED;
+            }
+            byte[] data = in.readNBytes(length);
+            bytes.addAndGet(data.length);
+            if (data.length != length) {
+                return Result.FAILED;
+            }
+            if (tree != null && !tree.verifyChunk(piece, data, length)) {
+                return Result.CORRUPT;
+            }
+            synchronized (this) {
+                if (remaining > 0 && !done.get(piece)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, first + buffer.position());
+                    }
+                    done.set(piece);
+                    remaining--;
+                    contributors.add(server);
+                }
+            }
+            return Result.OK;
+        } catch (IOException e) {
+            return Result.FAILED;
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Releases a piece; a failed piece nobody else is fetching goes back to the front of the queue
+     */
+    private synchronized void finish(int piece, boolean ok) {
+        fetchers[piece]--;
+        if (!ok && !done.get(piece) && fetchers[piece] == 0) {
+            queue.addFirst(piece);
+        }
+        notifyAll();
+    }
+
+    /**
+     * The Merkle tree most sources serve for this object, or null unless at least two sources
+     * serve it. A tree from a single source could be made up to match bad pieces, so pieces are
+     * then only checked as part of the whole file.
+     */
+    private MerkleTree agreedTree() {
+        Map<String, Integer> votes = new HashMap<>();
+        Map<String, MerkleTree> trees = new HashMap<>();
+        for (String server : sources.keySet()) {
+            MerkleTree candidate = PeerClient.tree(server, hash);
+            if (candidate != null && candidate.size() == size) {
+                String root = HashIndex.bytesToHex(candidate.root());
+                votes.merge(root, 1, Integer::sum);
+                trees.putIfAbsent(root, candidate);
+            }
+        }
+        String best = null;
+        for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+            if (best == null || vote.getValue() > votes.get(best)) {
+                best = vote.getKey();
+            }
+        }
+        if (best == null || votes.get(best) < 2) {
+            return null;
+        }
+        return trees.get(best);
+    }
+
+    private static String sha256Hex(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+            return HashIndex.bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not found", e);
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental inverted index over text posts.
+ *
+ * Posts are tokenized on a background thread into an in-memory write buffer. When the
+ * buffer grows past the memory budget it is flushed to an immutable segment file, and
+ * once too many segments pile up they are merged into a single one.
+ *
+ * Segment layout: postings for every term (32-byte raw hash + int term frequency),
+ * followed by the term dictionary (term, document frequency, postings offset) and a
+ * trailer holding the dictionary offset and the number of documents in the segment.
+ *
+ * The memory budget bounds the write buffer only. The term dictionary of every open segment
+ * is kept in the heap as well, so the index needs memory in proportion to its distinct terms
+ * on top of the budget. Merges stream the dictionaries from disk in term order and hold the
+ * postings of one term at a time.
+ *
+ * The hash of each post is appended to pending.log before add() returns, and removed once the
+ * post is in a segment. Posts still in the write buffer when the server is killed are indexed
+ * again by backfill() on the next start; one that was flushed just before the kill may be
+ * indexed twice, which searches do not notice.
+ */
+public class TextIndex {
+    private static final Pattern SHA256_REGEX = Pattern.compile("^[a-f0-9]{64}$");
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String PENDING_LOG = "pending.log";
+    private static final int TRAILER_SIZE = 12; // long dictionary offset + int document count
+    private static final int MAX_SEGMENTS = 8; // Merge everything once this many segments exist
+    private static final int MIN_TOKEN_LENGTH = 2;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int TERM_OVERHEAD = 96; // Rough heap cost of a buffered term entry
+    private static final int POSTING_OVERHEAD = 48; // Rough heap cost of a buffered posting
+
+    private final Path indexDir;
+    private final long memoryBudget;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "text-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Write buffer: term -> (content hash -> term frequency), guarded by this
+    private final Map<String, Map<String, Integer>> buffer = new HashMap<>();
+    private long bufferBytes = 0;
+    private int bufferDocs = 0;
+    private final List<Segment> segments = new ArrayList<>();
+    private int nextSegmentId = 0;
+
+    // Hashes of the posts not yet in a segment, one per line in the order they were queued
+    private final Path pendingLog;
+    private final Object logLock = new Object();
+    private Writer pendingWriter; // Guarded by logLock
+    private final List<String> replay = new ArrayList<>(); // Lines left by the previous run
+    private int loggedDocs = 0; // Leading lines of the log whose posts are indexed; worker thread only
+
+    public TextIndex(Path indexDir, long memoryBudget) throws IOException {
+        this.indexDir = indexDir;
+        this.memoryBudget = memoryBudget;
+        Files.createDirectories(indexDir);
+
+        // Open existing segments in creation order
+        List<Path> segmentFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(indexDir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segmentFiles.add(path);
+            }
+        }
+        segmentFiles.sort(Comparator.comparingInt(TextIndex::segmentId));
+        for (Path path : segmentFiles) {
+            segments.add(new Segment(path));
+            nextSegmentId = Math.max(nextSegmentId, segmentId(path) + 1);
+        }
+
+        // Keep the well-formed lines of the previous run's log, dropping one a crash cut short
+        pendingLog = indexDir.resolve(PENDING_LOG);
+        if (Files.exists(pendingLog)) {
+            for (String line : Files.readAllLines(pendingLog, StandardCharsets.UTF_8)) {
+                if (SHA256_REGEX.matcher(line).matches()) {
+                    replay.add(line);
+                }
+            }
+        }
+        Path tmp = indexDir.resolve(PENDING_LOG + ".tmp");
+        Files.write(tmp, replay, StandardCharsets.UTF_8);
+        Files.move(tmp, pendingLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        pendingWriter = openPendingLog();
+    }
+
+    /**
+     * Queues a text post for indexing; returns immediately
+     */
+    public void add(String hash, String text) {
+        // Logged and queued under one lock, so the log lists posts in the order they are indexed
+        synchronized (logLock) {
+            boolean logged = false;
+            try {
+                pendingWriter.write(hash + "\n");
+                pendingWriter.flush();
+                logged = true;
+            } catch (IOException e) {
+                System.err.println("Error logging " + hash + " for the text index: " + e.getMessage());
+            }
+            boolean counted = logged;
+            worker.submit(() -> {
+                boolean full = index(hash, text);
+                if (counted) {
+                    loggedDocs++;
+                }
+                if (full) {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        System.err.println("Error flushing text index: " + e.getMessage());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues for indexing every stored .txt object when the index is still empty, and otherwise
+     * the posts that had not reached a segment when the server last stopped. Call it before the
+     * first add().
+     */
+    public void backfill(Path dataDir) {
+        boolean empty;
+        synchronized (this) {
+            empty = segments.isEmpty();
+        }
+        if (!empty && replay.isEmpty()) {
+            return;
+        }
+        worker.submit(() -> {
+            try {
+                if (empty) {
+                    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(dataDir)) {
+                        for (Path dir : dirs) {
+                            String hash = dir.getFileName().toString();
+                            if (SHA256_REGEX.matcher(hash).matches() && indexStored(dataDir, hash)) {
+                                flush();
+                            }
+                        }
+                    }
+                } else {
+                    for (String hash : replay) {
+                        if (indexStored(dataDir, hash)) {
+                            flush();
+                        }
+                    }
+                }
+                loggedDocs += replay.size();
+                replay.clear();
+                flush();
+            } catch (IOException e) {
+                System.err.println("Error backfilling text index: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Flushes the write buffer and stops the background worker
+     */
+    public void close() {
+        worker.submit(() -> {
+            try {
+                flush();
+            } catch (IOException e) {
+                System.err.println("Error flushing text index: " + e.getMessage());
+            }
+        });
+        worker.shutdown();
+        try {
+            worker.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (logLock) {
+            try {
+                pendingWriter.close();
+            } catch (IOException e) {
+                System.err.println("Error closing " + pendingLog + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns content hashes matching the query, best match first (TF-IDF ranking)
+     */
+    public synchronized List<String> search(String query, int limit) throws IOException {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query));
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long totalDocs = bufferDocs;
+        for (Segment segment : segments) {
+            totalDocs += segment.docCount;
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        for (String term : terms) {
+            // Collect postings from the buffer and every segment; keep the highest frequency
+            // if a post was indexed twice
+            Map<String, Integer> postings = new HashMap<>();
+            Map<String, Integer> buffered = buffer.get(term);
+            if (buffered != null) {
+                postings.putAll(buffered);
+            }
+            for (Segment segment : segments) {
+                segment.readPostings(term, postings);
+            }
+            if (postings.isEmpty()) {
+                continue;
+            }
+
+            double idf = Math.log(1.0 + (double) totalDocs / postings.size());
+            for (Map.Entry<String, Integer> posting : postings.entrySet()) {
+                double weight = (1.0 + Math.log(posting.getValue())) * idf;
+                scores.merge(posting.getKey(), weight, Double::sum);
+            }
+        }
+
+        List<Map.Entry<String, Double>> ranked = new ArrayList<>(scores.entrySet());
+        ranked.sort(Map.Entry.<String, Double>comparingByValue().reversed());
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            result.add(ranked.get(i).getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Splits text into lowercase letter/digit tokens
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                current.append(Character.toLowerCase(c));
+                continue;
+            }
+            if (current.length() >= MIN_TOKEN_LENGTH && current.length() <= MAX_TOKEN_LENGTH) {
+                tokens.add(current.toString());
+            }
+            current.setLength(0);
+        }
+        return tokens;
+    }
+
+    /**
+     * Indexes the stored .txt object of hash, if there is one; returns true if the buffer is full
+     */
+    private boolean indexStored(Path dataDir, String hash) throws IOException {
+        Path textFile = dataDir.resolve(hash).resolve(hash + ".txt");
+        if (!Files.isRegularFile(textFile) && !Files.isRegularFile(StoredFiles.deflated(textFile))) {
+            return false;
+        }
+        return index(hash, new String(StoredFiles.read(textFile, null), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adds a post to the write buffer; returns true if the buffer has reached the memory budget
+     */
+    private boolean index(String hash, String text) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokenize(text)) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+
+        synchronized (this) {
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                Map<String, Integer> postings = buffer.get(entry.getKey());
+                if (postings == null) {
+                    postings = new HashMap<>();
+                    buffer.put(entry.getKey(), postings);
+                    bufferBytes += TERM_OVERHEAD + 2L * entry.getKey().length();
+                }
+                postings.put(hash, entry.getValue());
+                bufferBytes += POSTING_OVERHEAD;
+            }
+            bufferDocs++;
+            return bufferBytes >= memoryBudget;
+        }
+    }
+
+    /**
+     * Writes the write buffer to a new segment and merges segments when there are too many
+     */
+    private void flush() throws IOException {
+        synchronized (this) {
+            if (bufferDocs > 0) {
+                Path path = indexDir.resolve(nextSegmentId++ + SEGMENT_SUFFIX);
+                writeSegment(path, new TreeMap<>(buffer), bufferDocs);
+                segments.add(new Segment(path));
+                buffer.clear();
+                bufferBytes = 0;
+                bufferDocs = 0;
+            }
+        }
+        dropLogged();
+
+        List<Segment> toMerge;
+        synchronized (this) {
+            if (segments.size() < MAX_SEGMENTS) {
+                return;
+            }
+            toMerge = new ArrayList<>(segments);
+        }
+        merge(toMerge);
+    }
+
+    /**
+     * Merges the given segments into one; searches keep using the old ones until the swap
+     */
+    private void merge(List<Segment> toMerge) throws IOException {
+        Path tmp = indexDir.resolve("merge.tmp");
+        Path dictionaryTmp = indexDir.resolve("merge.dict.tmp");
+        // k-way merge over the segment dictionaries, which are stored in term order
+        PriorityQueue<DictionaryCursor> cursors = new PriorityQueue<>(Comparator.comparing((DictionaryCursor c) -> c.term));
+        try {
+            long docCount = 0;
+            for (Segment segment : toMerge) {
+                docCount += segment.docCount;
+                DictionaryCursor cursor = new DictionaryCursor(segment);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                } else {
+                    cursor.close();
+                }
+            }
+
+            int termCount = 0;
+            long offset = 0;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                // The dictionary goes to its own file first, since the segment format puts its
+                // size in front of it
+                try (DataOutputStream dictionary = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dictionaryTmp)))) {
+                    while (!cursors.isEmpty()) {
+                        String term = cursors.peek().term;
+                        Map<String, Integer> postings = new TreeMap<>();
+                        while (!cursors.isEmpty() && cursors.peek().term.equals(term)) {
+                            DictionaryCursor cursor = cursors.poll();
+                            cursor.segment.readPostings(cursor.offset, cursor.df, postings);
+                            if (cursor.next()) {
+                                cursors.add(cursor);
+                            } else {
+                                cursor.close();
+                            }
+                        }
+                        dictionary.writeUTF(term);
+                        dictionary.writeLong(offset);
+                        dictionary.writeInt(postings.size());
+                        termCount++;
+                        offset += writePostings(out, postings);
+                    }
+                }
+                out.writeInt(termCount);
+                Files.copy(dictionaryTmp, out);
+                out.writeLong(offset);
+                out.writeInt((int) docCount);
+            }
+        } finally {
+            for (DictionaryCursor cursor : cursors) {
+                cursor.close();
+            }
+            Files.deleteIfExists(dictionaryTmp);
+        }
+
+        synchronized (this) {
+            Path path = indexDir.resolve(nextSegmentId++ + SEGMENT_SUFFIX);
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            segments.removeAll(toMerge);
+            segments.add(0, new Segment(path));
+            for (Segment segment : toMerge) {
+                segment.channel.close();
+                Files.deleteIfExists(segment.path);
+            }
+        }
+    }
+
+    /**
+     * Removes the posts that are now in a segment from the front of the pending log
+     */
+    private void dropLogged() throws IOException {
+        if (loggedDocs == 0) {
+            return;
+        }
+        synchronized (logLock) {
+            pendingWriter.close();
+            try {
+                List<String> lines = Files.readAllLines(pendingLog, StandardCharsets.UTF_8);
+                Path tmp = indexDir.resolve(PENDING_LOG + ".tmp");
+                Files.write(tmp, lines.subList(Math.min(loggedDocs, lines.size()), lines.size()), StandardCharsets.UTF_8);
+                Files.move(tmp, pendingLog, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                loggedDocs = 0;
+            } finally {
+                pendingWriter = openPendingLog();
+            }
+        }
+    }
+
+    private Writer openPendingLog() throws IOException {
+        return Files.newBufferedWriter(pendingLog, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeSegment(Path path, SortedMap<String, Map<String, Integer>> terms, long docCount) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            Map<String, long[]> dictionary = new LinkedHashMap<>();
+            long offset = 0;
+            for (Map.Entry<String, Map<String, Integer>> entry : terms.entrySet()) {
+                dictionary.put(entry.getKey(), new long[]{offset, entry.getValue().size()});
+                offset += writePostings(out, entry.getValue());
+            }
+            writeDictionary(out, dictionary, offset, docCount);
+        }
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long writePostings(DataOutputStream out, Map<String, Integer> postings) throws IOException {
+        for (Map.Entry<String, Integer> posting : postings.entrySet()) {
+            out.write(hexToBytes(posting.getKey()));
+            out.writeInt(posting.getValue());
+        }
+        return (long) postings.size() * 36;
+    }
+
+    private static void writeDictionary(DataOutputStream out, Map<String, long[]> dictionary, long dictionaryOffset, long docCount) throws IOException {
+        out.writeInt(dictionary.size());
+        for (Map.Entry<String, long[]> entry : dictionary.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue()[0]);
+            out.writeInt((int) entry.getValue()[1]);
+        }
+        out.writeLong(dictionaryOffset);
+        out.writeInt((int) docCount);
+    }
+
+    private static int segmentId(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String bytesToHex(byte[] bytes) {
+        StringBuilder hexString = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) {
+                hexString.append('0');
+            }
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    /**
+     * Reads a segment's term dictionary from disk one entry at a time, in term order
+     */
+    private static class DictionaryCursor implements Closeable {
+        final Segment segment;
+        private final FileChannel channel;
+        private final DataInputStream in;
+        private int remaining;
+        String term;
+        long offset;
+        int df;
+
+        DictionaryCursor(Segment segment) throws IOException {
+            this.segment = segment;
+            this.channel = FileChannel.open(segment.path, StandardOpenOption.READ);
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(segment.dictionaryOffset))));
+            this.remaining = in.readInt();
+        }
+
+        /**
+         * Moves to the next term, or returns false at the end of the dictionary
+         */
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            term = in.readUTF();
+            offset = in.readLong();
+            df = in.readInt();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * An immutable on-disk segment; only the term dictionary is held in memory
+     */
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final Map<String, long[]> dictionary = new HashMap<>(); // term -> {offset, document frequency}
+        private final long dictionaryOffset;
+        private final long docCount;
+
+        Segment(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+            readFully(trailer, channel.size() - TRAILER_SIZE);
+            trailer.flip();
+            this.dictionaryOffset = trailer.getLong();
+            this.docCount = trailer.getInt();
+
+            try (FileChannel dictionaryChannel = FileChannel.open(path, StandardOpenOption.READ);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(dictionaryChannel.position(dictionaryOffset))))) {
+                int termCount = in.readInt();
+                for (int i = 0; i < termCount; i++) {
+                    String term = in.readUTF();
+                    long offset = in.readLong();
+                    int df = in.readInt();
+                    dictionary.put(term, new long[]{offset, df});
+                }
+            }
+        }
+
+        /**
+         * Adds this segment's postings for a term, keeping the larger frequency on duplicates
+         */
+        void readPostings(String term, Map<String, Integer> postings) throws IOException {
+            long[] entry = dictionary.get(term);
+            if (entry != null) {
+                readPostings(entry[0], (int) entry[1], postings);
+            }
+        }
+
+        void readPostings(long offset, int df, Map<String, Integer> postings) throws IOException {
+            ByteBuffer data = ByteBuffer.allocate(df * 36);
+            readFully(data, offset);
+            data.flip();
+            byte[] hash = new byte[32];
+            while (data.hasRemaining()) {
+                data.get(hash);
+                postings.merge(bytesToHex(hash), data.getInt(), Math::max);
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Truncated segment " + path);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+import java.io.*;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+/**
+ * The HTTP clients shared by the tools, built on java.net.http.HttpClient.
+ *
+ * One client per process keeps connections to each server alive and reuses them, multiplexes
+ * requests over a single HTTP/2 connection where the server offers it, and sets up its TLS
+ * context once, so a download loop does not pay for a new handshake per file. Every exchange
+ * is recorded on the Scoreboard.
+ *
+ * GET requests to decenhash servers, which carry the object bodies, go through
+ * HttpURLConnection instead: on localhost it moves a 400 MB body about three times as fast as
+ * HttpClient, whose HTTP/1.1 pipeline is the bottleneck even when the body is discarded. It
+ * pools keep-alive connections too, and its socket read timeout covers the body.
+ *
+ * HttpClient has a connect timeout and a timeout until the response headers, but none while a
+ * body is read, so its bodies come through a stream that is closed once a read has waited for
+ * data longer than the read timeout. Bodies are read at the rates the BandwidthLimiter allows,
+ * and requests to a server whose CircuitBreaker is open fail without being sent.
+ */
+public class Transport {
+    static final int CONNECT_TIMEOUT = 5000; // 5 seconds
+    private static final long WATCH_INTERVAL_MILLIS = 1000;
+
+    static {
+        // Read bodies in 256 KiB buffers instead of 16 KiB; set before the first client is built
+        if (System.getProperty("jdk.httpclient.bufsize") == null) {
+            System.setProperty("jdk.httpclient.bufsize", "262144");
+        }
+    }
+
+    // Built on first use: setting up an HttpClient takes a large part of a second
+    private static HttpClient client;
+    private static HttpClient trustingClient;
+
+    // Connects GET requests through HttpURLConnection and waits for their response headers
+    private static final ExecutorService connector = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "http-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Body streams being read, checked for stalls every WATCH_INTERVAL_MILLIS
+    private static final Set<WatchedStream> watched = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "http-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        watchdog.scheduleWithFixedDelay(Transport::closeStalled, WATCH_INTERVAL_MILLIS, WATCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The client for requests to decenhash servers other than GET
+     */
+    private static synchronized HttpClient client() {
+        if (client == null) {
+            client = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                    .build();
+        }
+        return client;
+    }
+
+    /**
+     * A client that follows redirects and accepts any certificate, for Downloader fetching
+     * links found in pages from arbitrary hosts. Built once, with a single TLS context.
+     */
+    public static synchronized HttpClient trustingClient() {
+        if (trustingClient == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, new TrustManager[]{new TrustAll()}, new java.security.SecureRandom());
+                trustingClient = HttpClient.newBuilder()
+                        .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                        .followRedirects(HttpClient.Redirect.NORMAL)
+                        .sslContext(context)
+                        .build();
+            } catch (Exception e) {
+                throw new RuntimeException("Could not set up TLS", e);
+            }
+        }
+        return trustingClient;
+    }
+
+    /**
+     * Sends a request to a decenhash server and returns the response with its body as a
+     * stream, which fails once a read has waited readTimeoutMillis for data. The caller must
+     * close the body.
+     */
+    public static HttpResponse<InputStream> open(HttpRequest request, int readTimeoutMillis) throws IOException {
+        return await(openAsync(request, readTimeoutMillis), request.uri().toString());
+    }
+
+    /**
+     * Like open(request, readTimeoutMillis), through the given client
+     */
+    public static HttpResponse<InputStream> open(HttpClient client, HttpRequest request, int readTimeoutMillis) throws IOException {
+        return await(send(client, request, readTimeoutMillis), request.uri().toString());
+    }
+
+    /**
+     * Sends a request to a decenhash server without blocking. The response body is a stream
+     * that fails once a read has waited readTimeoutMillis for data; the caller must close it.
+     * Cancelling the future before the response arrives abandons the exchange.
+     */
+    public static CompletableFuture<HttpResponse<InputStream>> openAsync(HttpRequest request, int readTimeoutMillis) {
+        return send("GET".equals(request.method()) ? null : client(), request, readTimeoutMillis);
+    }
+
+    /**
+     * Sends a request through client, or through HttpURLConnection if client is null
+     */
+    private static CompletableFuture<HttpResponse<InputStream>> send(HttpClient client, HttpRequest request, int readTimeoutMillis) {
+        String url = request.uri().toString();
+        long ticket = CircuitBreaker.allow(url);
+        if (ticket == CircuitBreaker.REFUSED) {
+            return CompletableFuture.failedFuture(new ConnectException("Circuit open for " + Scoreboard.origin(url)));
+        }
+        long start = System.nanoTime();
+        CompletableFuture<HttpResponse<InputStream>> sent;
+        if (client == null) {
+            sent = connect(request, readTimeoutMillis);
+        } else {
+            HttpResponse.BodyHandler<InputStream> watchedBody = info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(),
+                    in -> BandwidthLimiter.limit(new WatchedStream(in, readTimeoutMillis), url));
+            sent = client.sendAsync(request, watchedBody);
+        }
+        sent.whenComplete((response, error) -> {
+            if (error instanceof CancellationException) {
+                CircuitBreaker.abandoned(url, ticket); // Abandoned by the caller, says nothing about the server
+                return;
+            }
+            if (error != null || response.statusCode() >= 500) {
+                Scoreboard.failure(url);
+                CircuitBreaker.failure(url, ticket);
+            } else {
+                Scoreboard.success(url, (System.nanoTime() - start) / 1_000_000);
+                CircuitBreaker.success(url, ticket);
+            }
+        });
+        return sent; // Not the whenComplete stage: only cancelling the client's own future aborts the exchange
+    }
+
+    /**
+     * Sends a request through HttpURLConnection on a connector thread. If the future was
+     * cancelled by the time the headers arrive, the body is closed.
+     */
+    private static CompletableFuture<HttpResponse<InputStream>> connect(HttpRequest request, int readTimeoutMillis) {
+        CompletableFuture<HttpResponse<InputStream>> sent = new CompletableFuture<>();
+        connector.execute(() -> {
+            try {
+                HttpResponse<InputStream> response = new ConnectionResponse(request, readTimeoutMillis);
+                if (!sent.complete(response)) {
+                    response.body().close();
+                }
+            } catch (IOException | RuntimeException e) {
+                sent.completeExceptionally(e);
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * Waits for a future, unwrapping the IOException it failed with
+     */
+    public static <T> T await(CompletableFuture<T> future, String what) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + what);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * A request builder with the header timeout set to timeoutMillis
+     */
+    public static HttpRequest.Builder request(String url, int timeoutMillis) throws IOException {
+        try {
+            return HttpRequest.newBuilder(new URI(url)).timeout(Duration.ofMillis(timeoutMillis));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new MalformedURLException(e.getMessage());
+        }
+    }
+
+    /**
+     * Content-Length of a response, or -1 if it has none
+     */
+    public static long contentLength(HttpResponse<?> response) {
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    private static void closeStalled() {
+        long now = System.nanoTime();
+        for (WatchedStream stream : watched) {
+            if (stream.reading && now - stream.lastProgress > stream.timeoutNanos) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // The stream is being abandoned either way
+                }
+            }
+        }
+    }
+
+    /**
+     * Body stream that the watchdog closes when a read makes no progress. Time spent outside
+     * read, such as waiting for bandwidth, does not count.
+     */
+    private static class WatchedStream extends FilterInputStream {
+        final long timeoutNanos;
+        volatile long lastProgress = System.nanoTime();
+        volatile boolean reading;
+
+        WatchedStream(InputStream in, int timeoutMillis) {
+            super(in);
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            watched.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            lastProgress = System.nanoTime();
+            reading = true;
+            try {
+                return super.read();
+            } finally {
+                reading = false;
+                lastProgress = System.nanoTime();
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            lastProgress = System.nanoTime();
+            reading = true;
+            try {
+                return super.read(buffer, offset, length);
+            } finally {
+                reading = false;
+                lastProgress = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watched.remove(this);
+            super.close();
+        }
+    }
+
+    /**
+     * A response received through HttpURLConnection, with its body limited by the BandwidthLimiter
+     */
+    private static class ConnectionResponse implements HttpResponse<InputStream> {
+        private final HttpRequest request;
+        private final int status;
+        private final HttpHeaders headers;
+        private final InputStream body;
+
+        ConnectionResponse(HttpRequest request, int readTimeoutMillis) throws IOException {
+            this.request = request;
+            HttpURLConnection connection = (HttpURLConnection) request.uri().toURL().openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setInstanceFollowRedirects(false); // Like HttpClient's default
+            request.headers().map().forEach((name, values) -> values.forEach(value -> connection.addRequestProperty(name, value)));
+            this.status = connection.getResponseCode();
+
+            Map<String, List<String>> fields = new HashMap<>(connection.getHeaderFields());
+            fields.remove(null); // The status line
+            this.headers = HttpHeaders.of(fields, (name, value) -> true);
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            this.body = BandwidthLimiter.limit(in != null ? in : InputStream.nullInputStream(), request.uri().toString());
+        }
+
+        @Override public int statusCode() { return status; }
+        @Override public HttpRequest request() { return request; }
+        @Override public Optional<HttpResponse<InputStream>> previousResponse() { return Optional.empty(); }
+        @Override public HttpHeaders headers() { return headers; }
+        @Override public InputStream body() { return body; }
+        @Override public Optional<SSLSession> sslSession() { return Optional.empty(); }
+        @Override public URI uri() { return request.uri(); }
+        @Override public HttpClient.Version version() { return HttpClient.Version.HTTP_1_1; }
+    }
+
+    /**
+     * Accepts every certificate and host name. Being an X509ExtendedTrustManager it also takes
+     * over the host name check, which JSSE would otherwise still apply.
+     */
+    private static class TrustAll extends X509ExtendedTrustManager {
+        @Override public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+        @Override public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+        @Override public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+        @Override public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {}
+        @Override public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+        @Override public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {}
+        @Override public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+    }
+}
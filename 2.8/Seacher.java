@@ -7,14 +7,18 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.URI;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -35,6 +39,10 @@ import java.util.concurrent.ExecutionException;
  * file directly at: {server_url}/files/{your_input}
  *
  * Results found will be displayed in the table. Clicking a row will open the URL in your browser.
+ *
+ * A server that fails MAX_FAILURES checks in a row is skipped for BREAKER_OPEN_MILLIS, after
+ * which a single check probes whether it is back, so a dead server does not cost a timeout
+ * on every search.
  */
 public class Seacher extends JFrame {
 
@@ -44,6 +52,16 @@ public class Seacher extends JFrame {
     private static final Color BUTTON_COLOR = new Color(0, 150, 136); // Teal
     private static final Color TEXT_COLOR = new Color(0, 77, 64); // Dark Teal
 
+    // One client for every check, so connections to each server are kept alive and reused
+    private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    // Circuit breaker per server, kept for the life of the window
+    private static final int MAX_FAILURES = 3;
+    private static final long BREAKER_OPEN_MILLIS = 30000; // 30 seconds
+    private static final Map<String, Breaker> BREAKERS = new ConcurrentHashMap<>();
+
     private final JTextField searchField;
     private final JButton searchButton;
     private final JTable resultsTable;
@@ -273,6 +291,12 @@ public class Seacher extends JFrame {
             String searchTerm = isFileInput ? query : toSha256(query);
 
             for (String server : servers) {
+                Breaker breaker = BREAKERS.computeIfAbsent(server, s -> new Breaker());
+                if (!breaker.allow()) {
+                    publish(new String[]{"Checking", "Skipping " + server + ", it stopped answering"});
+                    continue;
+                }
+
                 String urlToCheck;
                 if (isFileInput) {
                     urlToCheck = server + "/files/" + searchTerm;
@@ -281,7 +305,7 @@ public class Seacher extends JFrame {
                 }
 
                 publish(new String[]{"Checking", urlToCheck}); // Update UI with current check status
-                if (checkUrlExists(urlToCheck)) {
+                if (checkUrlExists(urlToCheck, breaker)) {
                     publish(new String[]{"Found", urlToCheck}); // Publish only found results to the table
                 }
             }
@@ -289,18 +313,31 @@ public class Seacher extends JFrame {
         }
 
         /**
-         * Checks if a resource exists at the given URL by making an HTTP HEAD request.
+         * Checks if a resource exists at the given URL by making an HTTP HEAD request,
+         * reporting to the server's breaker whether it answered.
          */
-        private boolean checkUrlExists(String urlString) {
+        private boolean checkUrlExists(String urlString, Breaker breaker) {
             try {
-                URL url = new URL(urlString);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("HEAD");
-                connection.setConnectTimeout(5000); // 5 seconds
-                connection.setReadTimeout(5000); // 5 seconds
-                int responseCode = connection.getResponseCode();
-                return (responseCode == HttpURLConnection.HTTP_OK);
+                HttpRequest request = HttpRequest.newBuilder(URI.create(urlString))
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .timeout(Duration.ofSeconds(5))
+                        .build();
+                int responseCode = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                if (responseCode >= 500) {
+                    breaker.failure();
+                } else {
+                    breaker.success();
+                }
+                return (responseCode == 200);
+            } catch (IllegalArgumentException e) {
+                breaker.abandon(); // A bad URL, not a sign the server is down
+                return false;
             } catch (IOException e) {
+                breaker.failure();
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                breaker.abandon();
                 return false;
             }
         }
@@ -348,5 +385,46 @@ public class Seacher extends JFrame {
             }
         }
     }
+
+    /**
+     * Closed while the server answers; after MAX_FAILURES failures in a row it stays open for
+     * BREAKER_OPEN_MILLIS, then lets one check through as a probe
+     */
+    private static class Breaker {
+        private int failures;
+        private long openUntil;
+        private boolean probing;
+
+        synchronized boolean allow() {
+            if (failures < MAX_FAILURES) {
+                return true;
+            }
+            if (probing || System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void success() {
+            failures = 0;
+            probing = false;
+        }
+
+        /**
+         * The check was not made, so a probe may be sent again
+         */
+        synchronized void abandon() {
+            probing = false;
+        }
+
+        synchronized void failure() {
+            failures++;
+            probing = false;
+            if (failures >= MAX_FAILURES) {
+                openUntil = System.currentTimeMillis() + BREAKER_OPEN_MILLIS;
+            }
+        }
+    }
 }
 